@@ -0,0 +1,210 @@
+package Model;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The HotPathBenchmark class measures the throughput of the main hot paths with JMH, so that a release can be compared with the last one:
+ * 		calcMandel on an interior, a boundary and a fast-escaping point,
+ * 		calcMandelbrotSet on the initial view and a boundary view at several resolutions and max iteration numbers,
+ * 		for every kernel and strategy of the tile engine,
+ * 		calculateColor over every count for each colour scheme,
+ * 		ModelCalculator.updateImage when only the colour scheme changes and when the view is computed,
+ * 		ModelCalculator.saveImage.
+ * Its score is the number of operations per second. The benchmarks are built into jmh/target/benchmarks.jar by the jmh module,
+ * whose options select the benchmarks and parameters and write the results as CSV or JSON.
+ * 	example usage:
+ * 		java -jar jmh/target/benchmarks.jar HotPathBenchmark.calcMandelbrotSet -p kernel=AUTO,LANES -rf json -rff results.json
+ * @author 170024030
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class HotPathBenchmark {
+	static final MandelbrotParam INITIAL = new MandelbrotParam(ModelCalculator.INITIAL_MIN_REAL, ModelCalculator.INITIAL_MAX_REAL,
+			ModelCalculator.INITIAL_MIN_IMAGINARY, ModelCalculator.INITIAL_MAX_IMAGINARY,
+			ModelCalculator.INITIAL_COLOR_SCHEME, ModelCalculator.INITIAL_MAX_ITERATIONS);
+	static final MandelbrotParam BOUNDARY = new MandelbrotParam(new BigDecimal("-0.743643887037"), new BigDecimal("0.131825904205"),
+			0.005, 0.005, ModelCalculator.INITIAL_COLOR_SCHEME, ModelCalculator.INITIAL_MAX_ITERATIONS);
+
+	/**
+	 * A single point, iterated up to 1000 times.
+	 */
+	@State(Scope.Benchmark)
+	public static class Point {
+		@Param({"interior", "boundary", "escape"})
+		public String point;
+		final MandelbrotCalculator calculator = new MandelbrotCalculator();
+		double cReal;
+		double cImaginary;
+
+		@Setup
+		public void setUp() {
+			switch (point) {
+			case "interior":
+				cReal = -0.1;
+				cImaginary = 0.1;
+				break;
+			case "boundary":
+				cReal = -0.743643887037;
+				cImaginary = 0.131825904205;
+				break;
+			default:
+				cReal = 1.5;
+				cImaginary = 1.5;
+			}
+		}
+	}
+
+	/**
+	 * A whole view computed by the tile engine with a given kernel and strategy.
+	 */
+	@State(Scope.Benchmark)
+	public static class View {
+		@Param({"initial", "boundary"})
+		public String view;
+		@Param({"200", "800", "1600"})
+		public int resolution;
+		@Param({"50", "1000"})
+		public int maxIteration;
+		@Param({"AUTO", "OPTIMISED", "LANES", "STANDARD"})
+		public MandelbrotCalculator.Kernel kernel;
+		@Param({"BRUTE_FORCE", "MARIANI_SILVER"})
+		public MandelbrotCalculator.Strategy strategy;
+		final MandelbrotCalculator calculator = new MandelbrotCalculator();
+		MandelbrotParam mp;
+		int[] data;
+
+		@Setup
+		public void setUp() {
+			calculator.setKernel(kernel);
+			calculator.setStrategy(strategy);
+			mp = view.equals("initial") ? INITIAL : BOUNDARY;
+			data = new int[resolution * resolution];
+		}
+	}
+
+	/**
+	 * A colour scheme mapping the counts of views of up to 1000 iterations.
+	 */
+	@State(Scope.Benchmark)
+	public static class Scheme {
+		@Param({"BnW", "Blue", "Red", "Green", "Rainbow"})
+		public String scheme;
+	}
+
+	/**
+	 * Two states of the same view in two colour schemes, so that every update only recolours the cached counts.
+	 */
+	@State(Scope.Benchmark)
+	public static class Recolour {
+		@Param({"BnW", "Blue", "Red", "Green", "Rainbow"})
+		public String scheme;
+		ModelCalculator model;
+
+		@Setup
+		public void setUp() {
+			model = new ModelCalculator(800, 800);
+			model.getData().set(0, new MandelbrotParam(INITIAL, scheme, 1000));
+			model.getData().add(new MandelbrotParam(INITIAL, model.getData().get(0).getNextColor(scheme), 1000));
+			model.updateImage();
+		}
+	}
+
+	/**
+	 * Two views whose cached counts are dropped before every update, so that every update computes its view.
+	 */
+	@State(Scope.Benchmark)
+	public static class ViewChange {
+		ModelCalculator model;
+
+		@Setup
+		public void setUp() {
+			model = new ModelCalculator(800, 800);
+			model.getData().set(0, new MandelbrotParam(INITIAL, ModelCalculator.INITIAL_COLOR_SCHEME, 1000));
+			model.getData().add(new MandelbrotParam(BOUNDARY, ModelCalculator.INITIAL_COLOR_SCHEME, 1000));
+			model.updateImage();
+		}
+	}
+
+	/**
+	 * An 800x800 image and the temporary PNG file it is saved to.
+	 */
+	@State(Scope.Benchmark)
+	public static class Export {
+		ModelCalculator model;
+		File png;
+
+		@Setup
+		public void setUp() throws IOException {
+			model = new ModelCalculator(800, 800);
+			model.updateImage();
+			png = File.createTempFile("benchmark", ".png");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			png.delete();
+		}
+	}
+
+	@Benchmark
+	public int calcMandel(Point p) {
+		return p.calculator.calcMandel(p.cReal, p.cImaginary, 1000, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED);
+	}
+
+	@Benchmark
+	public int calcMandelbrotSet(View v) {
+		v.calculator.calcMandelbrotSet(v.data, v.resolution, v.resolution, v.mp.getMinReal(), v.mp.getMaxReal(),
+				v.mp.getMinImag(), v.mp.getMaxImag(), v.maxIteration, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED);
+		return v.data[v.data.length / 2];
+	}
+
+	@Benchmark
+	public void calculateColor(Scheme s, Blackhole blackhole) {
+		for (int val = 0; val <= 1000; val++) {
+			blackhole.consume(ModelCalculator.calculateColor(val, s.scheme, 1000));
+		}
+	}
+
+	@Benchmark
+	public int updateImageRecolour(Recolour r) {
+		r.model.setStateIndex(1 - r.model.getStateIndex());
+		r.model.updateImage();
+		return r.model.getImage().getRGB(400, 400);
+	}
+
+	@Benchmark
+	public int updateImageView(ViewChange v) {
+		v.model.getIterationCache().clear();
+		v.model.setStateIndex(1 - v.model.getStateIndex());
+		v.model.updateImage();
+		return v.model.getImage().getRGB(400, 400);
+	}
+
+	@Benchmark
+	public long saveImage(Export e) throws IOException {
+		e.model.saveImage(e.png);
+		return e.png.length();
+	}
+}
@@ -0,0 +1,102 @@
+package Model;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The PrecisionBenchmark class measures the cost of each precision tier on the same view with JMH.
+ * The view is a boundary region zoomed in just far enough for all three engines to resolve it, so they all run the same
+ * iterations. Its score is the number of renders per second, with the pixels and the iterations per second as secondary results;
+ * the iterations are the sum of the iteration counts of the pixels, whatever shortcuts the kernel took to find them.
+ * The cost of a tier relative to the double kernel is the ratio of their scores.
+ * 	example usage:
+ * 		java -jar jmh/target/benchmarks.jar PrecisionBenchmark -p resolution=400 -rf json -rff precision.json
+ * @author 170024030
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PrecisionBenchmark {
+	private static final BigDecimal CENTRE_REAL = new BigDecimal("-0.743643887037158704752191506114774");
+	private static final BigDecimal CENTRE_IMAGINARY = new BigDecimal("0.131825904205311970493132056385139");
+	private static final double SPAN = 1e-9;
+
+	/**
+	 * The view, rendered by the engine of one tier.
+	 */
+	@State(Scope.Benchmark)
+	public static class Tier {
+		@Param({"DOUBLE", "DOUBLE_DOUBLE", "PERTURBATION"})
+		public Precision tier;
+		@Param({"200", "400"})
+		public int resolution;
+		@Param({"2000"})
+		public int maxIteration;
+		final MandelbrotCalculator calculator = new MandelbrotCalculator();
+		final DoubleDoubleCalculator doubleDouble = new DoubleDoubleCalculator(calculator);
+		final PerturbationCalculator perturbation = new PerturbationCalculator(calculator);
+		MandelbrotParam mp;
+		int[] data;
+
+		@Setup
+		public void setUp() {
+			mp = new MandelbrotParam(CENTRE_REAL, CENTRE_IMAGINARY, SPAN, SPAN, ModelCalculator.INITIAL_COLOR_SCHEME, maxIteration);
+			data = new int[resolution * resolution];
+		}
+	}
+
+	/**
+	 * The pixels and iterations computed, reported per second next to the score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Work {
+		public long pixels;
+		public long iterations;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			pixels = 0;
+			iterations = 0;
+		}
+	}
+
+	@Benchmark
+	public int calcMandelbrotSet(Tier t, Work work) {
+		MandelbrotParam mp = t.mp;
+		switch (t.tier) {
+		case DOUBLE:
+			t.calculator.calcMandelbrotSet(t.data, t.resolution, t.resolution, mp.getMinReal(), mp.getMaxReal(),
+					mp.getMinImag(), mp.getMaxImag(), t.maxIteration, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED);
+			break;
+		case DOUBLE_DOUBLE:
+			t.doubleDouble.calcMandelbrotSet(t.data, t.resolution, t.resolution, mp, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED, 1, null, null);
+			break;
+		case PERTURBATION:
+			t.perturbation.calcMandelbrotSet(t.data, t.resolution, t.resolution, mp, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED, 1, null, null);
+			break;
+		}
+		work.pixels += t.data.length;
+		for (int value : t.data) {
+			work.iterations += value;
+		}
+		return t.data[t.data.length / 2];
+	}
+}
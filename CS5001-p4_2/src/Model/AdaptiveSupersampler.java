@@ -0,0 +1,209 @@
+package Model;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * The AdaptiveSupersampler class renders antialiased images for the price of a plain render plus the pixels that need it.
+ * The view is rendered once at its resolution. A pixel whose count differs from one of its four neighbours by more than the
+ * threshold, or which is inside the set while a neighbour is not, sits on an edge that aliases, so it gets grid x grid extra
+ * samples, one at a random point of every cell of a grid over its footprint, and its colour becomes the mean colour of its samples.
+ * Interior and smooth exterior regions keep their single sample, so they cost what a plain render costs.
+ * The jitter is seeded by the pixel, so the same view always gives the same image.
+ * The refined pixels are sampled in batches, to bound the memory of large renders, on the engine the depth of the view requires.
+ * 	example usage:
+ * 		AdaptiveSupersampler.Report report = new AdaptiveSupersampler(renderer, 4, 1).render(mp, width, height, pixels, null);
+ * @author 170024030
+ *
+ */
+public final class AdaptiveSupersampler {
+	private static final int BATCH_PIXELS = 1 << 16;
+	private final ViewRenderer renderer;
+	private final int grid;
+	private final int threshold;
+
+	/**
+	 * What an antialiased render cost.
+	 */
+	public static final class Report {
+		private final long pixels;
+		private final long refinedPixels;
+		private final long extraSamples;
+		private final long baseNanos;
+		private final long refineNanos;
+
+		Report(long pixels, long refinedPixels, long extraSamples, long baseNanos, long refineNanos) {
+			this.pixels = pixels;
+			this.refinedPixels = refinedPixels;
+			this.extraSamples = extraSamples;
+			this.baseNanos = baseNanos;
+			this.refineNanos = refineNanos;
+		}
+
+		public long getPixels() {
+			return pixels;
+		}
+
+		public long getRefinedPixels() {
+			return refinedPixels;
+		}
+
+		public long getExtraSamples() {
+			return extraSamples;
+		}
+
+		/**
+		 * @return the extra samples as a share of those a full supersample at the same grid would take.
+		 */
+		public double getBudgetShare() {
+			return refinedPixels == 0 ? 0 : (double) refinedPixels / pixels;
+		}
+
+		public long getBaseNanos() {
+			return baseNanos;
+		}
+
+		public long getRefineNanos() {
+			return refineNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%d of %d pixels refined (%.1f%%), %d extra samples, base %.1f ms, refinement %.1f ms",
+					refinedPixels, pixels, 100.0 * refinedPixels / pixels, extraSamples, baseNanos / 1e6, refineNanos / 1e6);
+		}
+	}
+
+	/**
+	 * Creates a supersampler.
+	 * @param renderer
+	 * @param grid the number of extra samples of a refined pixel along each axis, at least 1.
+	 * @param threshold the largest difference of count between neighbours that is left alone.
+	 */
+	public AdaptiveSupersampler(ViewRenderer renderer, int grid, int threshold) {
+		if (grid < 1 || threshold < 0) {
+			throw new IllegalArgumentException("grid must be positive and threshold non-negative");
+		}
+		this.renderer = renderer;
+		this.grid = grid;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * render an antialiased view.
+	 * @param mp the view.
+	 * @param width
+	 * @param height
+	 * @param pixels the row-major array receiving the RGB values, e.g. the raster of a TYPE_INT_RGB image.
+	 * @param cancelled polled to abandon the render, may be null.
+	 * @return what the render cost.
+	 */
+	public Report render(MandelbrotParam mp, final int width, final int height, int[] pixels, BooleanSupplier cancelled) {
+		long start = System.nanoTime();
+		final int[] counts = new int[width * height];
+		renderer.calculate(counts, width, height, mp, 1, null, cancelled);
+		ViewRenderer.colour(counts, pixels, width, height, mp);
+		long based = System.nanoTime();
+
+		final int maxIteration = mp.getMaxIteration();
+		final boolean[] edge = new boolean[counts.length];
+		int edges = IntStream.range(0, height).parallel().map(y -> {
+			int n = 0;
+			for (int x = 0, i = y * width; x < width; x++, i++) {
+				edge[i] = (x > 0 && differ(counts[i], counts[i - 1], maxIteration))
+						|| (x + 1 < width && differ(counts[i], counts[i + 1], maxIteration))
+						|| (y > 0 && differ(counts[i], counts[i - width], maxIteration))
+						|| (y + 1 < height && differ(counts[i], counts[i + width], maxIteration));
+				if (edge[i]) {
+					n++;
+				}
+			}
+			return n;
+		}).sum();
+		//the buffers hold one batch, no larger than the pixels to refine
+		int batchSize = Math.min(edges, BATCH_PIXELS);
+		int[] refined = new int[batchSize];
+		int samplesPerPixel = grid * grid;
+		double[] xs = new double[batchSize * samplesPerPixel];
+		double[] ys = new double[xs.length];
+		int[] samples = new int[xs.length];
+		long refinedPixels = 0;
+		int batch = 0;
+		for (int i = 0; i <= edge.length; i++) {
+			if (i < edge.length && edge[i]) {
+				refined[batch++] = i;
+			}
+			if (batch > 0 && (batch == batchSize || i == edge.length)) {
+				if (cancelled != null && cancelled.getAsBoolean()) {
+					break;
+				}
+				refine(mp, width, height, refined, batch, xs, ys, samples, pixels, cancelled);
+				refinedPixels += batch;
+				batch = 0;
+			}
+		}
+		return new Report(counts.length, refinedPixels, refinedPixels * samplesPerPixel, based - start, System.nanoTime() - based);
+	}
+
+	private boolean differ(int a, int b, int maxIteration) {
+		return Math.abs(a - b) > threshold || (a == maxIteration) != (b == maxIteration);
+	}
+
+	/**
+	 * sample a batch of refined pixels and replace their colour by the mean colour of their samples, the first one included.
+	 */
+	private void refine(MandelbrotParam mp, int width, int height, final int[] refined, int batch, final double[] xs, final double[] ys,
+			final int[] samples, final int[] pixels, BooleanSupplier cancelled) {
+		final int samplesPerPixel = grid * grid;
+		final int n = batch * samplesPerPixel;
+		final int w = width;
+		IntStream.range(0, batch).parallel().forEach(p -> {
+			int index = refined[p];
+			long seed = index * 0x9e3779b97f4a7c15L;
+			for (int s = 0; s < samplesPerPixel; s++) {
+				//the footprint of pixel (x, y) is centred on its first sample, from x - 1/2 to x + 1/2
+				seed = mix(seed);
+				double jitterX = (seed >>> 11) * 0x1.0p-53;
+				seed = mix(seed);
+				double jitterY = (seed >>> 11) * 0x1.0p-53;
+				xs[p * samplesPerPixel + s] = index % w - 0.5 + (s % grid + jitterX) / grid;
+				ys[p * samplesPerPixel + s] = index / w - 0.5 + (s / grid + jitterY) / grid;
+			}
+		});
+		double[] batchXs = xs;
+		double[] batchYs = ys;
+		if (n < xs.length) {
+			batchXs = Arrays.copyOf(xs, n);
+			batchYs = Arrays.copyOf(ys, n);
+		}
+		renderer.sample(samples, width, height, mp, batchXs, batchYs, cancelled);
+		final int[] palette = Palette.lookup(mp.getColorScheme(), mp.getMaxIteration());
+		IntStream.range(0, batch).parallel().forEach(p -> {
+			int index = refined[p];
+			int first = pixels[index];
+			int red = (first >> 16) & 0xff;
+			int green = (first >> 8) & 0xff;
+			int blue = first & 0xff;
+			for (int s = p * samplesPerPixel, end = s + samplesPerPixel; s < end; s++) {
+				int rgb = palette[samples[s]];
+				red += (rgb >> 16) & 0xff;
+				green += (rgb >> 8) & 0xff;
+				blue += rgb & 0xff;
+			}
+			int total = samplesPerPixel + 1;
+			pixels[index] = ((red + total / 2) / total) << 16 | ((green + total / 2) / total) << 8 | (blue + total / 2) / total;
+		});
+	}
+
+	/**
+	 * one step of the SplitMix64 generator.
+	 */
+	private static long mix(long seed) {
+		long z = seed + 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
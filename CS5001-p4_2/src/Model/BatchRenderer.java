@@ -0,0 +1,362 @@
+package Model;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The BatchRenderer class renders views to PNG files without any user interface, e.g. on a headless build server.
+ * Views are read from the current state of the session files written by ModelCalculator.saveParam, from MSData_*.ser files
+ * saved by earlier versions, or from text specs holding one view per line:
+ * 		centreReal centreImag realSpan [imagSpan [maxIteration [colorScheme]]]
+ * Blank lines and lines starting with # are skipped. A missing imaginary span is chosen for square pixels.
+ * Every view is a job of a queue worked through by a few job threads, whose tiles all share the fork-join pool of one tile engine,
+ * so a job waiting on its slowest tiles leaves the pool to the next one. The timing of each job is printed as it finishes.
+ * With -colouring smooth the views are coloured by histogram equalisation of a continuous iteration count, see SmoothColouring.
+ * With -antialias the pixels on edges get GRID x GRID extra samples, see AdaptiveSupersampler, and the extra samples are reported.
+ * -strategy selects how the tile engine fills its tiles, see MandelbrotCalculator.Strategy, e.g. to time Mariani-Silver subdivision,
+ * and -kernel the escape-time kernel of its pixels, see MandelbrotCalculator.Kernel.
+ * 	example usage:
+ * 		java Model.BatchRenderer -size 1920x1080 -iterations 2000 -palette Rainbow -out renders MSData_*.ser views.txt
+ * @author 170024030
+ *
+ */
+public class BatchRenderer {
+	private static final String USAGE = "usage: java Model.BatchRenderer [-size WIDTHxHEIGHT] [-iterations N] [-palette NAME]"
+			+ " [-colouring linear|smooth] [-antialias GRID [-threshold N]]"
+			+ " [-strategy brute_force|mariani_silver] [-kernel standard|optimised|lanes|auto] [-threads N] [-jobs N] [-out DIRECTORY] FILE...";
+	private static final String[] COLOR_SCHEMES = {"BnW", "Blue", "Red", "Green", "Rainbow"};
+	private int width = 800;
+	private int height = 800;
+	private int maxIteration;	//0 to keep the iteration number of each view
+	private String colorScheme;	//null to keep the colour scheme of each view
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int jobs = 2;
+	private boolean smooth;	//whether views are coloured by SmoothColouring
+	private int antialias;	//the grid of extra samples of an edge pixel along each axis, 0 for none
+	private int threshold = 1;	//the difference of count between neighbours marking an edge
+	private MandelbrotCalculator.Strategy strategy = MandelbrotCalculator.Strategy.BRUTE_FORCE;
+	private MandelbrotCalculator.Kernel kernel = MandelbrotCalculator.Kernel.AUTO;
+	private File outputDirectory = new File(".");
+	private final List<File> inputs = new ArrayList<File>();
+
+	/**
+	 * One view to render and the file it is written to.
+	 */
+	private static final class Job {
+		final String name;
+		final MandelbrotParam view;
+		final File output;
+
+		Job(String name, MandelbrotParam view, File output) {
+			this.name = name;
+			this.view = view;
+			this.output = output;
+		}
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		BatchRenderer batch = new BatchRenderer();
+		try {
+			batch.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		System.exit(batch.run() ? 0 : 1);
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("-")) {
+				inputs.add(new File(arg));
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("missing value for " + arg);
+			}
+			String value = args[++i];
+			switch (arg) {
+			case "-size":
+				String[] size = value.toLowerCase().split("x");
+				if (size.length != 2) {
+					throw new IllegalArgumentException("size must be WIDTHxHEIGHT: " + value);
+				}
+				width = positive(arg, size[0]);
+				height = positive(arg, size[1]);
+				break;
+			case "-iterations":
+				maxIteration = positive(arg, value);
+				break;
+			case "-palette":
+				colorScheme = colorScheme(value);
+				break;
+			case "-colouring":
+				if (!value.equals("linear") && !value.equals("smooth")) {
+					throw new IllegalArgumentException("unknown colouring " + value);
+				}
+				smooth = value.equals("smooth");
+				break;
+			case "-antialias":
+				antialias = positive(arg, value);
+				break;
+			case "-threshold":
+				threshold = nonNegative(arg, value);
+				break;
+			case "-strategy":
+				strategy = constant(arg, value, MandelbrotCalculator.Strategy.class);
+				break;
+			case "-kernel":
+				kernel = constant(arg, value, MandelbrotCalculator.Kernel.class);
+				break;
+			case "-threads":
+				threads = positive(arg, value);
+				break;
+			case "-jobs":
+				jobs = positive(arg, value);
+				break;
+			case "-out":
+				outputDirectory = new File(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + arg);
+			}
+		}
+		if (smooth && antialias > 0) {
+			throw new IllegalArgumentException("-antialias only supports linear colouring");
+		}
+		if (inputs.isEmpty()) {
+			throw new IllegalArgumentException("no input file");
+		}
+	}
+
+	static int positive(String option, String value) {
+		try {
+			int n = Integer.parseInt(value.trim());
+			if (n > 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			//reported below
+		}
+		throw new IllegalArgumentException(option + " must be a positive integer: " + value);
+	}
+
+	static int nonNegative(String option, String value) {
+		try {
+			int n = Integer.parseInt(value.trim());
+			if (n >= 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			//reported below
+		}
+		throw new IllegalArgumentException(option + " must be a non-negative integer: " + value);
+	}
+
+	static <E extends Enum<E>> E constant(String option, String value, Class<E> type) {
+		for (E constant : type.getEnumConstants()) {
+			if (constant.name().equalsIgnoreCase(value)) {
+				return constant;
+			}
+		}
+		throw new IllegalArgumentException("unknown " + option.substring(1) + " " + value);
+	}
+
+	static String colorScheme(String name) {
+		for (String scheme : COLOR_SCHEMES) {
+			if (scheme.equalsIgnoreCase(name)) {
+				return scheme;
+			}
+		}
+		throw new IllegalArgumentException("unknown palette " + name + ", expected one of " + String.join(", ", COLOR_SCHEMES));
+	}
+
+	/**
+	 * read every input, then render the jobs and print their timings.
+	 * @return true if every job succeeded.
+	 */
+	private boolean run() {
+		List<Job> queue = new ArrayList<Job>();
+		boolean ok = true;
+		for (File input : inputs) {
+			try {
+				readJobs(input, queue);
+			} catch (IOException | ClassNotFoundException | ClassCastException | IllegalArgumentException e) {
+				System.err.println(input + ": " + e);
+				ok = false;
+			}
+		}
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			System.err.println("cannot create " + outputDirectory);
+			return false;
+		}
+
+		MandelbrotCalculator tileEngine = new MandelbrotCalculator(MandelbrotCalculator.DEFAULT_TILE_SIZE, threads);
+		tileEngine.setStrategy(strategy);
+		tileEngine.setKernel(kernel);
+		final ViewRenderer renderer = new ViewRenderer(tileEngine);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, Math.max(queue.size(), 1)));
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		System.out.println("job,width,height,max_iteration,precision,compute_ms,encode_ms,mpixels_per_second,refined_pixels,extra_samples");
+		long start = System.nanoTime();
+		for (final Job job : queue) {
+			results.add(executor.submit(() -> render(renderer, job)));
+		}
+		executor.shutdown();
+		for (Future<Boolean> result : results) {
+			try {
+				ok &= result.get();
+			} catch (Exception e) {
+				System.err.println(e);
+				ok = false;
+			}
+		}
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.printf("# %d jobs in %.0f ms on %d threads%n", queue.size(), (System.nanoTime() - start) / 1e6, threads);
+		return ok;
+	}
+
+	private boolean render(ViewRenderer renderer, Job job) {
+		try {
+			long start = System.nanoTime();
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			long refined = 0;
+			long extraSamples = 0;
+			if (antialias > 0) {
+				AdaptiveSupersampler.Report report = new AdaptiveSupersampler(renderer, antialias, threshold)
+						.render(job.view, width, height, pixels, null);
+				refined = report.getRefinedPixels();
+				extraSamples = report.getExtraSamples();
+			} else {
+				int[] iterations = new int[width * height];
+				if (smooth) {
+					double[] moduli = new double[width * height];
+					renderer.calculateSmooth(iterations, moduli, width, height, job.view, null, null);
+					SmoothColouring.colour(iterations, moduli, pixels, width, height, job.view);
+				} else {
+					renderer.calculate(iterations, width, height, job.view, 1, null, null);
+					ViewRenderer.colour(iterations, pixels, width, height, job.view);
+				}
+			}
+			long computed = System.nanoTime();
+			ImageIO.write(image, "PNG", job.output);
+			long encoded = System.nanoTime();
+			System.out.printf("%s,%d,%d,%d,%s,%.1f,%.1f,%.2f,%d,%d%n", job.name, width, height, job.view.getMaxIteration(),
+					Precision.select(job.view, width, height), (computed - start) / 1e6, (encoded - computed) / 1e6,
+					(double) width * height / ((computed - start) / 1e3), refined, extraSamples);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			System.err.println(job.name + ": " + e);
+			return false;
+		}
+	}
+
+	private void readJobs(File input, List<Job> queue) throws IOException, ClassNotFoundException {
+		String name = input.getName();
+		String base = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+		if (name.endsWith(".ser") || name.endsWith(SessionFile.EXTENSION)) {
+			queue.add(new Job(name, prepare(readParam(input)), new File(outputDirectory, base + ".png")));
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					queue.add(new Job(name + ":" + number, prepare(parseSpec(line, width, height)),
+							new File(outputDirectory, base + "_" + number + ".png")));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("line " + number + ": " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * read the current state of a session saved by ModelCalculator.saveParam, or a state serialized by earlier versions.
+	 */
+	static MandelbrotParam readParam(File input) throws IOException, ClassNotFoundException {
+		if (SessionFile.matches(input)) {
+			return SessionFile.read(input.toPath()).getCurrent();
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(input))) {
+			return (MandelbrotParam) in.readObject();
+		}
+	}
+
+	/**
+	 * parse a text spec of one view, whose imaginary span defaults to square pixels at the given resolution.
+	 */
+	static MandelbrotParam parseSpec(String line, int width, int height) {
+		String[] fields = line.split("\\s+");
+		if (fields.length < 3 || fields.length > 6) {
+			throw new IllegalArgumentException("expected centreReal centreImag realSpan [imagSpan [maxIteration [colorScheme]]]");
+		}
+		BigDecimal centreReal = new BigDecimal(fields[0]);
+		BigDecimal centreImag = new BigDecimal(fields[1]);
+		double realSpan = Double.parseDouble(fields[2]);
+		double imagSpan = fields.length > 3 ? Double.parseDouble(fields[3]) : realSpan * height / width;
+		if (!(realSpan > 0) || !(imagSpan > 0)) {
+			throw new IllegalArgumentException("spans must be positive");
+		}
+		int iterations = fields.length > 4 ? positive("maxIteration", fields[4]) : ModelCalculator.INITIAL_MAX_ITERATIONS;
+		if (iterations > ModelCalculator.MAX_ITERATIONS) {
+			throw new IllegalArgumentException("maxIteration must be at most " + ModelCalculator.MAX_ITERATIONS + ": " + iterations);
+		}
+		String scheme = fields.length > 5 ? colorScheme(fields[5]) : ModelCalculator.INITIAL_COLOR_SCHEME;
+		return new MandelbrotParam(centreReal, centreImag, realSpan, imagSpan, scheme, iterations);
+	}
+
+	/**
+	 * apply the options to a view.
+	 */
+	private MandelbrotParam prepare(MandelbrotParam mp) {
+		return fit(mp, width, height, colorScheme, maxIteration);
+	}
+
+	/**
+	 * widen a view along one axis if needed so that its pixels are square at the given resolution,
+	 * and replace its colour scheme and max iteration number unless they are null and 0.
+	 */
+	static MandelbrotParam fit(MandelbrotParam mp, int width, int height, String colorScheme, int maxIteration) {
+		double realSpan = mp.getRealSpan();
+		double imagSpan = mp.getImagSpan();
+		if (Math.abs(realSpan) / width > Math.abs(imagSpan) / height) {
+			imagSpan = Math.copySign(Math.abs(realSpan) * height / width, imagSpan);
+		} else {
+			realSpan = Math.copySign(Math.abs(imagSpan) * width / height, realSpan);
+		}
+		return new MandelbrotParam(mp.getCentreReal(), mp.getCentreImag(), realSpan, imagSpan,
+				colorScheme != null ? colorScheme : mp.getColorScheme(),
+				maxIteration > 0 ? maxIteration : mp.getMaxIteration());
+	}
+}
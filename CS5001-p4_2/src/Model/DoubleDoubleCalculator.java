@@ -0,0 +1,176 @@
+package Model;
+
+import java.math.BigDecimal;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The DoubleDoubleCalculator class renders mid-depth views in double-double arithmetic.
+ * A double-double number is the unevaluated sum hi + lo of two doubles with |lo| <= ulp(hi) / 2, which carries about 106 bits
+ * of mantissa, enough to resolve pixel spacings down to about 1e-30 around the Mandelbrot set.
+ * This is cheaper than the perturbation engine for views just beyond double precision, since it needs no reference orbit
+ * and has no glitches. Every pair is kept in local variables, so the kernel allocates nothing.
+ * The pixels are scheduled by the tile engine of a MandelbrotCalculator.
+ * @author 170024030
+ *
+ */
+public class DoubleDoubleCalculator {
+	//2^27 + 1, used to split a double into two halves whose products are exact
+	private static final double SPLIT = 134217729.0;
+	private final MandelbrotCalculator tileEngine;
+
+	/**
+	 * Creates a double-double engine scheduling its pixels on the given tile engine.
+	 * @param tileEngine
+	 */
+	public DoubleDoubleCalculator(MandelbrotCalculator tileEngine) {
+		this.tileEngine = tileEngine;
+	}
+
+	/**
+	 * Method which calculates the number of iterations for the constant C given in double-double, with the same escape test
+	 * and count as MandelbrotCalculator.calcMandel.
+	 * @param crHi the high part of the real component of C.
+	 * @param crLo the low part of the real component of C.
+	 * @param ciHi the high part of the imaginary component of C.
+	 * @param ciLo the low part of the imaginary component of C.
+	 * @param maxIterations
+	 * @param radiusSquared
+	 * @return the number iterations for the value of Z to grow outside of the bounding radius, or maxIterations if it never escaped.
+	 */
+	static int calcMandel(double crHi, double crLo, double ciHi, double ciLo, int maxIterations, double radiusSquared) {
+		double zrHi = 0, zrLo = 0;
+		double ziHi = 0, ziLo = 0;
+		int iterations = 0;
+		while (iterations < maxIterations) {
+			// zr^2: two-product of the high parts (Dekker), plus the cross terms
+			double t = SPLIT * zrHi;
+			double aHi = t - (t - zrHi);
+			double aLo = zrHi - aHi;
+			double p = zrHi * zrHi;
+			double e = ((aHi * aHi - p) + 2 * aHi * aLo) + aLo * aLo;
+			e += 2 * zrHi * zrLo;
+			double zr2Hi = p + e;
+			double zr2Lo = e - (zr2Hi - p);
+			// zi^2
+			t = SPLIT * ziHi;
+			double bHi = t - (t - ziHi);
+			double bLo = ziHi - bHi;
+			p = ziHi * ziHi;
+			e = ((bHi * bHi - p) + 2 * bHi * bLo) + bLo * bLo;
+			e += 2 * ziHi * ziLo;
+			double zi2Hi = p + e;
+			double zi2Lo = e - (zi2Hi - p);
+			// the escape test needs no more than double precision
+			boolean outside = (zr2Hi + zi2Hi) > radiusSquared;
+			// zr * zi, doubled exactly
+			p = zrHi * ziHi;
+			e = ((aHi * bHi - p) + aHi * bLo + aLo * bHi) + aLo * bLo;
+			e += zrHi * ziLo + zrLo * ziHi;
+			double mHi = p + e;
+			double mLo = e - (mHi - p);
+			mHi *= 2;
+			mLo *= 2;
+			// new zr = zr^2 - zi^2 + cr
+			double s = zr2Hi - zi2Hi;
+			double v = s - zr2Hi;
+			e = (zr2Hi - (s - v)) + (-zi2Hi - v);
+			e += zr2Lo - zi2Lo;
+			double dHi = s + e;
+			double dLo = e - (dHi - s);
+			s = dHi + crHi;
+			v = s - dHi;
+			e = (dHi - (s - v)) + (crHi - v);
+			e += dLo + crLo;
+			double nzrHi = s + e;
+			double nzrLo = e - (nzrHi - s);
+			// new zi = 2 * zr * zi + ci
+			s = mHi + ciHi;
+			v = s - mHi;
+			e = (mHi - (s - v)) + (ciHi - v);
+			e += mLo + ciLo;
+			ziHi = s + e;
+			ziLo = e - (ziHi - s);
+			zrHi = nzrHi;
+			zrLo = nzrLo;
+			iterations++;
+			if (outside)
+				break;
+		}
+		return iterations;
+	}
+
+	/**
+	 * Method to calculate the Mandelbrot set of a view into a flat array in double-double precision.
+	 * Pixel (x, y) is at C = centre + (x * realSpan / xResolution - realSpan / 2) + i * (y * imagSpan / yResolution - imagSpan / 2),
+	 * the same position as in the other engines; the offset from the centre is a double and the centre a double-double.
+	 * @param mandelbrotData the array receiving the value of pixel (x, y) at index y * xResolution + x, or null to only stream tiles to the sink.
+	 * @param xResolution
+	 * @param yResolution
+	 * @param mp the view, iteration count included.
+	 * @param radiusSquared
+	 * @param step the side length of the blocks sampled by one computed pixel, 1 for a full render.
+	 * @param sink notified as tiles are finished, may be null.
+	 * @param cancelled polled to abandon the render, may be null.
+	 */
+	public void calcMandelbrotSet(int[] mandelbrotData, int xResolution, int yResolution, MandelbrotParam mp,
+			final double radiusSquared, int step, MandelbrotSink sink, BooleanSupplier cancelled) {
+		final int maxIterations = mp.getMaxIteration();
+		final double realStep = mp.getRealSpan() / xResolution;
+		final double imagStep = mp.getImagSpan() / yResolution;
+		final double realOrigin = -mp.getRealSpan() / 2;
+		final double imagOrigin = -mp.getImagSpan() / 2;
+		final double centreRealHi = mp.getCentreReal().doubleValue();
+		final double centreRealLo = mp.getCentreReal().subtract(new BigDecimal(centreRealHi)).doubleValue();
+		final double centreImagHi = mp.getCentreImag().doubleValue();
+		final double centreImagLo = mp.getCentreImag().subtract(new BigDecimal(centreImagHi)).doubleValue();
+		tileEngine.calcMandelbrotSet(mandelbrotData, xResolution, yResolution, new PixelFunction() {
+			public int valueAt(int x, int y) {
+				return valueAtOffset(realOrigin + x * realStep, imagOrigin + y * imagStep,
+						centreRealHi, centreRealLo, centreImagHi, centreImagLo, maxIterations, radiusSquared);
+			}
+		}, step, sink, cancelled);
+	}
+
+	/**
+	 * Method to calculate the iteration counts at points of a view in double-double precision.
+	 * @param radiusSquared
+	 * @see ViewRenderer#sample(int[], int, int, MandelbrotParam, double[], double[], BooleanSupplier)
+	 */
+	void sample(int[] counts, int xResolution, int yResolution, MandelbrotParam mp, final double[] xs, final double[] ys,
+			final double radiusSquared, BooleanSupplier cancelled) {
+		final int maxIterations = mp.getMaxIteration();
+		final double realStep = mp.getRealSpan() / xResolution;
+		final double imagStep = mp.getImagSpan() / yResolution;
+		final double realOrigin = -mp.getRealSpan() / 2;
+		final double imagOrigin = -mp.getImagSpan() / 2;
+		final double centreRealHi = mp.getCentreReal().doubleValue();
+		final double centreRealLo = mp.getCentreReal().subtract(new BigDecimal(centreRealHi)).doubleValue();
+		final double centreImagHi = mp.getCentreImag().doubleValue();
+		final double centreImagLo = mp.getCentreImag().subtract(new BigDecimal(centreImagHi)).doubleValue();
+		tileEngine.calcMandelbrotSet(counts, xs.length, 1, new PixelFunction() {
+			public int valueAt(int k, int y) {
+				return valueAtOffset(realOrigin + xs[k] * realStep, imagOrigin + ys[k] * imagStep,
+						centreRealHi, centreRealLo, centreImagHi, centreImagLo, maxIterations, radiusSquared);
+			}
+		}, 1, null, cancelled);
+	}
+
+	/**
+	 * the iteration count at the given offset from a centre held in double-double.
+	 */
+	private static int valueAtOffset(double realOffset, double imagOffset, double centreRealHi, double centreRealLo,
+			double centreImagHi, double centreImagLo, int maxIterations, double radiusSquared) {
+		// centre + offset, with the rounding error of the sum of the high parts moved into the low part
+		double s = centreRealHi + realOffset;
+		double v = s - centreRealHi;
+		double e = (centreRealHi - (s - v)) + (realOffset - v) + centreRealLo;
+		double crHi = s + e;
+		double crLo = e - (crHi - s);
+		s = centreImagHi + imagOffset;
+		v = s - centreImagHi;
+		e = (centreImagHi - (s - v)) + (imagOffset - v) + centreImagLo;
+		double ciHi = s + e;
+		double ciLo = e - (ciHi - s);
+		return calcMandel(crHi, crLo, ciHi, ciLo, maxIterations, radiusSquared);
+	}
+}
@@ -0,0 +1,159 @@
+package Model;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The FlightRecorderEvents class commits the Java Flight Recorder events of the renders, e.g. recorded with
+ * 		java -XX:StartFlightRecording=filename=renders.jfr,settings=profile Main
+ * The event types are defined at run time with jdk.jfr.EventFactory, through reflection, so that the application still compiles
+ * for and runs on Java 8 runtimes without the jdk.jfr module.
+ * @author 170024030
+ *
+ */
+final class FlightRecorderEvents {
+	//the fields of each event, in the order of their indices, with a label and whether they are a time in nanoseconds
+	private static final Object[][] RENDER_FIELDS = {
+		{int.class, "width", "Width", false},
+		{int.class, "height", "Height", false},
+		{int.class, "maxIteration", "Max Iteration", false},
+		{String.class, "precision", "Precision", false},
+		{boolean.class, "complete", "Complete", false},
+		{long.class, "wallTime", "Wall Time", true},
+		{long.class, "reprojectTime", "Reproject Time", true},
+		{long.class, "computeTime", "Compute Time", true},
+		{long.class, "colourTime", "Colour Time", true},
+		{long.class, "pixels", "Pixels", false},
+		{long.class, "iterations", "Iterations", false},
+	};
+	private static final Object[][] TILE_FIELDS = {
+		{long.class, "time", "Time", true},
+		{long.class, "pixels", "Pixels", false},
+		{long.class, "iterations", "Iterations", false},
+	};
+	private final Object renderFactory;	//the jdk.jfr.EventFactory of Model.Render events
+	private final Object tileFactory;	//the jdk.jfr.EventFactory of Model.Tile events, which are disabled unless a recording enables them
+	private final Method newEvent;
+	private final Method shouldCommit;
+	private final Method set;
+	private final Method commit;
+
+	private FlightRecorderEvents(Object renderFactory, Object tileFactory, Method newEvent, Method shouldCommit, Method set, Method commit) {
+		this.renderFactory = renderFactory;
+		this.tileFactory = tileFactory;
+		this.newEvent = newEvent;
+		this.shouldCommit = shouldCommit;
+		this.set = set;
+		this.commit = commit;
+	}
+
+	/**
+	 * define the event types.
+	 * @return the events, or null if the runtime has no Flight Recorder.
+	 */
+	static FlightRecorderEvents create() {
+		try {
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Method create = factory.getMethod("create", List.class, List.class);
+			Object render = create.invoke(null, Arrays.asList(
+					annotation("jdk.jfr.Name", "Model.Render"),
+					annotation("jdk.jfr.Label", "Mandelbrot Render"),
+					annotation("jdk.jfr.Category", new String[] {"Mandelbrot"})), fields(RENDER_FIELDS));
+			Object tile = create.invoke(null, Arrays.asList(
+					annotation("jdk.jfr.Name", "Model.Tile"),
+					annotation("jdk.jfr.Label", "Mandelbrot Tile"),
+					annotation("jdk.jfr.Category", new String[] {"Mandelbrot"}),
+					annotation("jdk.jfr.Enabled", false)), fields(TILE_FIELDS));
+			return new FlightRecorderEvents(render, tile, factory.getMethod("newEvent"), event.getMethod("shouldCommit"),
+					event.getMethod("set", int.class, Object.class), event.getMethod("commit"));
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * a jdk.jfr.AnnotationElement of the given annotation type and value.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object annotation(String type, Object value) throws ReflectiveOperationException {
+		Class<? extends Annotation> annotationType = (Class<? extends Annotation>) Class.forName(type);
+		Constructor<?> constructor = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+		return constructor.newInstance(annotationType, value);
+	}
+
+	/**
+	 * the jdk.jfr.ValueDescriptor of each field.
+	 */
+	private static List<Object> fields(Object[][] fields) throws ReflectiveOperationException {
+		Constructor<?> constructor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+		List<Object> descriptors = new ArrayList<Object>();
+		for (Object[] field : fields) {
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation("jdk.jfr.Label", field[2]));
+			if ((Boolean) field[3]) {
+				annotations.add(annotation("jdk.jfr.Timespan", "NANOSECONDS"));
+			}
+			descriptors.add(constructor.newInstance(field[0], field[1], annotations));
+		}
+		return descriptors;
+	}
+
+	void render(RenderMetrics.Render render) {
+		Object event = newEvent(renderFactory);
+		if (event == null) {
+			return;
+		}
+		MandelbrotParam mp = render.getState();
+		commit(event,
+				render.getWidth(),
+				render.getHeight(),
+				mp.getMaxIteration(),
+				Precision.select(mp, render.getWidth(), render.getHeight()).name(),
+				render.isComplete(),
+				render.getWallNanos(),
+				render.getPhaseNanos(RenderMetrics.Phase.REPROJECT),
+				render.getPhaseNanos(RenderMetrics.Phase.COMPUTE),
+				render.getPhaseNanos(RenderMetrics.Phase.COLOUR),
+				render.getPixels(),
+				render.getIterations());
+	}
+
+	void tile(long nanos, long pixels, long iterations) {
+		Object event = newEvent(tileFactory);
+		if (event != null) {
+			commit(event, nanos, pixels, iterations);
+		}
+	}
+
+	/**
+	 * @return a new event of the factory, or null if its type is disabled, e.g. when nothing is recording.
+	 */
+	private Object newEvent(Object factory) {
+		try {
+			Object event = newEvent.invoke(factory);
+			return (Boolean) shouldCommit.invoke(event) ? event : null;
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("cannot create a Flight Recorder event", e);
+		}
+	}
+
+	/**
+	 * commit an event with the given field values, in the order of the fields.
+	 */
+	private void commit(Object event, Object... values) {
+		try {
+			for (int i = 0; i < values.length; i++) {
+				set.invoke(event, i, values[i]);
+			}
+			commit.invoke(event);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("cannot commit a Flight Recorder event", e);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package Model;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The IterationCache class keeps the iteration buffers of recently rendered views, so that going back to a view,
+ * e.g. with undo and redo, only costs colouring it again.
+ * Buffers are keyed by the fields of MandelbrotParam that change the iteration counts (the view and the max iteration number,
+ * but not the colour scheme) and by the resolution. The least recently used buffers are evicted once the heap budget is exceeded;
+ * if an off-heap budget is given, evicted buffers are first moved to direct memory, where they are again evicted least recently used.
+ * All methods are thread-safe.
+ * @author 170024030
+ *
+ */
+public class IterationCache {
+	private final long heapBudget;	//in bytes
+	private final long offHeapBudget;	//in bytes, 0 to drop evicted buffers
+	private long heapBytes;
+	private long offHeapBytes;
+	private long hits;
+	private long misses;
+	//both maps are in access order, the eldest entry is the least recently used
+	private final LinkedHashMap<Key, int[]> heap = new LinkedHashMap<Key, int[]>(16, 0.75f, true);
+	private final LinkedHashMap<Key, IntBuffer> offHeap = new LinkedHashMap<Key, IntBuffer>(16, 0.75f, true);
+
+	/**
+	 * The part of a state and resolution that determines an iteration buffer.
+	 */
+	private static final class Key {
+		private final BigDecimal centreReal;
+		private final BigDecimal centreImag;
+		private final double realSpan;
+		private final double imagSpan;
+		private final int maxIteration;
+		private final int width;
+		private final int height;
+
+		Key(MandelbrotParam mp, int width, int height) {
+			this.centreReal = mp.getCentreReal().stripTrailingZeros();
+			this.centreImag = mp.getCentreImag().stripTrailingZeros();
+			this.realSpan = mp.getRealSpan();
+			this.imagSpan = mp.getImagSpan();
+			this.maxIteration = mp.getMaxIteration();
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return centreReal.equals(k.centreReal)
+					&& centreImag.equals(k.centreImag)
+					&& Double.compare(realSpan, k.realSpan) == 0
+					&& Double.compare(imagSpan, k.imagSpan) == 0
+					&& maxIteration == k.maxIteration
+					&& width == k.width
+					&& height == k.height;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = centreReal.hashCode();
+			result = 31 * result + centreImag.hashCode();
+			result = 31 * result + Double.hashCode(realSpan);
+			result = 31 * result + Double.hashCode(imagSpan);
+			result = 31 * result + maxIteration;
+			result = 31 * result + width;
+			result = 31 * result + height;
+			return result;
+		}
+	}
+
+	/**
+	 * Creates a cache.
+	 * @param heapBudget the number of bytes of iteration buffers kept on the heap.
+	 * @param offHeapBudget the number of bytes of evicted buffers kept in direct memory, 0 to drop them.
+	 */
+	public IterationCache(long heapBudget, long offHeapBudget) {
+		if (heapBudget < 0 || offHeapBudget < 0) {
+			throw new IllegalArgumentException("budgets must not be negative");
+		}
+		this.heapBudget = heapBudget;
+		this.offHeapBudget = offHeapBudget;
+	}
+
+	/**
+	 * copy the cached buffer of a view, if any.
+	 * @param mp the state, of which the colour scheme is ignored.
+	 * @param width
+	 * @param height
+	 * @param destination the array of at least width * height elements receiving the buffer.
+	 * @return true on a hit, false if the view is not cached.
+	 */
+	public synchronized boolean get(MandelbrotParam mp, int width, int height, int[] destination) {
+		Key key = new Key(mp, width, height);
+		int[] buffer = heap.get(key);
+		if (buffer != null) {
+			System.arraycopy(buffer, 0, destination, 0, buffer.length);
+			hits++;
+			return true;
+		}
+		IntBuffer spilled = offHeap.remove(key);
+		if (spilled != null) {
+			offHeapBytes -= bytes(spilled.capacity());
+			spilled.get(destination, 0, spilled.capacity());
+			spilled.rewind();
+			hits++;
+			//a hit makes the buffer recently used again, so it goes back to the heap
+			store(key, destination, width * height);
+			return true;
+		}
+		misses++;
+		return false;
+	}
+
+	/**
+	 * store a copy of the buffer of a view.
+	 * @param mp the state, of which the colour scheme is ignored.
+	 * @param width
+	 * @param height
+	 * @param source the array holding the width * height iteration counts of the view.
+	 */
+	public synchronized void put(MandelbrotParam mp, int width, int height, int[] source) {
+		Key key = new Key(mp, width, height);
+		IntBuffer spilled = offHeap.remove(key);
+		if (spilled != null) {
+			offHeapBytes -= bytes(spilled.capacity());
+		}
+		int[] old = heap.remove(key);
+		if (old != null) {
+			heapBytes -= bytes(old.length);
+		}
+		store(key, source, width * height);
+	}
+
+	private void store(Key key, int[] source, int length) {
+		long size = bytes(length);
+		if (size > heapBudget) {
+			spill(key, source, length);
+			return;
+		}
+		int[] copy = new int[length];
+		System.arraycopy(source, 0, copy, 0, length);
+		heap.put(key, copy);
+		heapBytes += size;
+		Iterator<Map.Entry<Key, int[]>> eldest = heap.entrySet().iterator();
+		while (heapBytes > heapBudget) {
+			Map.Entry<Key, int[]> entry = eldest.next();
+			eldest.remove();
+			heapBytes -= bytes(entry.getValue().length);
+			spill(entry.getKey(), entry.getValue(), entry.getValue().length);
+		}
+	}
+
+	private void spill(Key key, int[] source, int length) {
+		long size = bytes(length);
+		if (size > offHeapBudget) {
+			return;
+		}
+		IntBuffer buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder()).asIntBuffer();
+		buffer.put(source, 0, length);
+		buffer.rewind();
+		offHeap.put(key, buffer);
+		offHeapBytes += size;
+		Iterator<Map.Entry<Key, IntBuffer>> eldest = offHeap.entrySet().iterator();
+		while (offHeapBytes > offHeapBudget) {
+			Map.Entry<Key, IntBuffer> entry = eldest.next();
+			eldest.remove();
+			offHeapBytes -= bytes(entry.getValue().capacity());
+		}
+	}
+
+	private static long bytes(int length) {
+		return 4L * length;
+	}
+
+	/**
+	 * drop every cached buffer. The counters are kept.
+	 */
+	public synchronized void clear() {
+		heap.clear();
+		offHeap.clear();
+		heapBytes = 0;
+		offHeapBytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the share of lookups that were hits, 0 if there was none.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public synchronized long getHeapBytes() {
+		return heapBytes;
+	}
+
+	public synchronized long getOffHeapBytes() {
+		return offHeapBytes;
+	}
+
+	public synchronized int size() {
+		return heap.size() + offHeap.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("IterationCache[%d on heap (%d bytes), %d off heap (%d bytes), %d hits, %d misses]",
+				heap.size(), heapBytes, offHeap.size(), offHeapBytes, hits, misses);
+	}
+}
@@ -0,0 +1,269 @@
+package Model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The IterationTiles class stores the iteration counts of a view in a session file, so that reopening a saved render
+ * does not mean computing it again. The counts are cut into square tiles, and every tile is compressed on its own:
+ * each count is replaced by its difference from the count on its left, or above it at the start of a row,
+ * the differences are written as zigzag varints, mostly single bytes as neighbouring counts are close, and deflated.
+ * The section is laid out big-endian as
+ * 		int magic "MSIT", int width, int height, int tileSize, an int length and CRC-32 of every tile,
+ * 		int CRC-32 of everything before it in the section, then the compressed tiles one after the other.
+ * A section read back keeps a view of the memory-mapped file and only inflates the tiles when the counts are needed,
+ * in parallel, checking each tile against its checksum and every count against the max iteration number.
+ * @author 170024030
+ *
+ */
+final class IterationTiles {
+	static final int TILE_SIZE = 64;
+	//the largest tile side accepted when reading, so that decoding a tile never needs more than about 5 MB
+	static final int MAX_TILE_SIZE = 1024;
+	private static final int MAGIC = 0x4d534954;	//"MSIT"
+	private static final int HEADER_BYTES = 16;
+	private final MandelbrotParam state;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private final int columns;
+	private final int[] offsets;	//the position of every tile in data, plus the end of the last one
+	private final int[] checksums;
+	private final ByteBuffer data;
+
+	private IterationTiles(MandelbrotParam state, int width, int height, int tileSize, int[] offsets, int[] checksums, ByteBuffer data) {
+		this.state = state;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.columns = (width + tileSize - 1) / tileSize;
+		this.offsets = offsets;
+		this.checksums = checksums;
+		this.data = data;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public MandelbrotParam getState() {
+		return state;
+	}
+
+	/**
+	 * check whether the counts of a view at a resolution are stored here, whatever its colour scheme.
+	 */
+	boolean holds(MandelbrotParam mp, int width, int height) {
+		return this.width == width && this.height == height && state.hasSameIterations(mp);
+	}
+
+	/**
+	 * compress the counts of a view into the buffers to write after the session block.
+	 * @param iterations the row-major counts.
+	 * @param width
+	 * @param height
+	 * @return the section header and table followed by one buffer per tile.
+	 */
+	static ByteBuffer[] encode(final int[] iterations, final int width, final int height) {
+		final int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		final byte[][] tiles = new byte[columns * rows][];
+		IntStream.range(0, tiles.length).parallel().forEach(t -> {
+			int x0 = t % columns * TILE_SIZE;
+			int y0 = t / columns * TILE_SIZE;
+			tiles[t] = encodeTile(iterations, width, x0, y0, Math.min(TILE_SIZE, width - x0), Math.min(TILE_SIZE, height - y0));
+		});
+		ByteBuffer[] buffers = new ByteBuffer[tiles.length + 1];
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 8 * tiles.length + 4);
+		header.putInt(MAGIC).putInt(width).putInt(height).putInt(TILE_SIZE);
+		CRC32 crc = new CRC32();
+		for (int t = 0; t < tiles.length; t++) {
+			crc.reset();
+			crc.update(tiles[t]);
+			header.putInt(tiles[t].length).putInt((int) crc.getValue());
+			buffers[t + 1] = ByteBuffer.wrap(tiles[t]);
+		}
+		crc.reset();
+		crc.update(header.array(), 0, header.position());
+		header.putInt((int) crc.getValue());
+		header.flip();
+		buffers[0] = header;
+		return buffers;
+	}
+
+	private static byte[] encodeTile(int[] iterations, int width, int x0, int y0, int w, int h) {
+		byte[] varints = new byte[w * h * 5];
+		int n = 0;
+		for (int y = y0; y < y0 + h; y++) {
+			int i = y * width + x0;
+			int previous = y > y0 ? iterations[i - width] : 0;
+			for (int end = i + w; i < end; i++) {
+				int delta = iterations[i] - previous;
+				previous = iterations[i];
+				int zigzag = (delta << 1) ^ (delta >> 31);
+				while ((zigzag & ~0x7f) != 0) {
+					varints[n++] = (byte) (zigzag & 0x7f | 0x80);
+					zigzag >>>= 7;
+				}
+				varints[n++] = (byte) zigzag;
+			}
+		}
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(varints, 0, n);
+			deflater.finish();
+			byte[] compressed = new byte[n + n / 1000 + 64];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					compressed = java.util.Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			return java.util.Arrays.copyOf(compressed, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * read the section of a session file, without inflating any tile.
+	 * @param section the rest of the file after the session block, whose position is the start of the section.
+	 * @param state the state the counts belong to.
+	 * @return the stored counts.
+	 * @throws IOException if the section is not valid.
+	 */
+	static IterationTiles read(ByteBuffer section, MandelbrotParam state) throws IOException {
+		int start = section.position();
+		if (section.remaining() < HEADER_BYTES + 4 || section.getInt() != MAGIC) {
+			throw corrupt("missing header");
+		}
+		int width = section.getInt();
+		int height = section.getInt();
+		int tileSize = section.getInt();
+		if (width <= 0 || height <= 0 || tileSize <= 0 || tileSize > MAX_TILE_SIZE || (long) width * height > Integer.MAX_VALUE / 4) {
+			throw corrupt("bad size " + width + "x" + height + " in tiles of " + tileSize);
+		}
+		long tiles = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+		if (tiles * 8 + 4 > section.remaining()) {
+			throw corrupt("truncated tile table");
+		}
+		int[] offsets = new int[(int) tiles + 1];
+		int[] checksums = new int[(int) tiles];
+		for (int t = 0; t < tiles; t++) {
+			int length = section.getInt();
+			if (length <= 0 || length > Integer.MAX_VALUE - offsets[t]) {
+				throw corrupt("bad length of tile " + t);
+			}
+			offsets[t + 1] = offsets[t] + length;
+			checksums[t] = section.getInt();
+		}
+		ByteBuffer table = section.duplicate();
+		table.position(start);
+		table.limit(section.position());
+		CRC32 crc = new CRC32();
+		crc.update(table);
+		if (section.getInt() != (int) crc.getValue()) {
+			throw corrupt("checksum mismatch");
+		}
+		if (section.remaining() != offsets[offsets.length - 1]) {
+			throw corrupt("tile data does not match its table");
+		}
+		return new IterationTiles(state, width, height, tileSize, offsets, checksums, section.slice());
+	}
+
+	/**
+	 * inflate every tile into a buffer.
+	 * @param destination the row-major array receiving the counts, of width * height elements.
+	 * @throws IOException if a tile is corrupt, in which case the destination is partly overwritten.
+	 */
+	void copyTo(final int[] destination) throws IOException {
+		final IOException[] failure = new IOException[1];
+		IntStream.range(0, checksums.length).parallel().forEach(t -> {
+			try {
+				copyTile(t, destination);
+			} catch (IOException e) {
+				failure[0] = e;
+			}
+		});
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	/**
+	 * inflate one tile into a buffer holding the whole view.
+	 * @param t the index of the tile, row by row.
+	 * @param destination the row-major array receiving the counts.
+	 * @throws IOException if the tile is corrupt.
+	 */
+	void copyTile(int t, int[] destination) throws IOException {
+		int x0 = t % columns * tileSize;
+		int y0 = t / columns * tileSize;
+		int w = Math.min(tileSize, width - x0);
+		int h = Math.min(tileSize, height - y0);
+		byte[] compressed = new byte[offsets[t + 1] - offsets[t]];
+		ByteBuffer tile = data.duplicate();
+		tile.position(offsets[t]);
+		tile.get(compressed);
+		CRC32 crc = new CRC32();
+		crc.update(compressed);
+		if ((int) crc.getValue() != checksums[t]) {
+			throw corrupt("checksum mismatch in tile " + t);
+		}
+		byte[] varints = new byte[w * h * 5];
+		int n;
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			n = inflater.inflate(varints);
+			if (!inflater.finished()) {
+				throw corrupt("tile " + t + " too long");
+			}
+		} catch (DataFormatException e) {
+			throw corrupt("bad data in tile " + t);
+		} finally {
+			inflater.end();
+		}
+		int maxIteration = state.getMaxIteration();
+		int p = 0;
+		for (int y = y0; y < y0 + h; y++) {
+			int i = y * width + x0;
+			int previous = y > y0 ? destination[i - width] : 0;
+			for (int end = i + w; i < end; i++) {
+				int zigzag = 0;
+				for (int shift = 0; ; shift += 7) {
+					if (p == n || shift > 28) {
+						throw corrupt("bad counts in tile " + t);
+					}
+					byte b = varints[p++];
+					zigzag |= (b & 0x7f) << shift;
+					if (b >= 0) {
+						break;
+					}
+				}
+				previous += (zigzag >>> 1) ^ -(zigzag & 1);
+				if (previous < 0 || previous > maxIteration) {
+					throw corrupt("count out of range in tile " + t);
+				}
+				destination[i] = previous;
+			}
+		}
+		if (p != n) {
+			throw corrupt("trailing counts in tile " + t);
+		}
+	}
+
+	private static IOException corrupt(String reason) {
+		return new IOException("corrupt iteration data: " + reason);
+	}
+}
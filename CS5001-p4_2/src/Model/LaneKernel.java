@@ -0,0 +1,107 @@
+package Model;
+
+import java.util.Arrays;
+
+/**
+ * The LaneKernel class iterates a run of adjacent pixels four at a time.
+ * Each of the four lanes holds the orbit of one pixel and all lanes are advanced together in one loop body, so the
+ * independent multiplications of different pixels overlap in the processor pipeline instead of waiting on each other
+ * as they do in the single orbit of calcMandel. A lane whose pixel escapes or reaches maxIterations writes its result
+ * and is immediately refilled with the next pixel of the run, so no lane idles until the run is exhausted.
+ * The arithmetic of every lane is the same as in calcMandel, so the iteration counts are identical, and so are the moduli
+ * recorded for smooth colouring.
+ * @author 170024030
+ *
+ */
+final class LaneKernel {
+	//the number of pixels iterated together
+	static final int LANES = 4;
+
+	private LaneKernel() {
+	}
+
+	/**
+	 * computes the pixels x = xFrom .. xFrom + count - 1 of one row.
+	 * The value of pixel x is written to values[offset + x].
+	 * @param moduli the array receiving at moduliOffset + x the modulus calcMandel gives for smooth colouring, may be null.
+	 * The pixels answered by the cardioid and bulb test are left alone, so the caller fills them with NaN beforehand.
+	 * @param moduliOffset
+	 */
+	static void calcMandelRow(int[] values, int offset, int xFrom, int count, double minReal, double realStep, double cImaginary,
+			int maxIterations, double radiusSquared, double[] moduli, int moduliOffset) {
+		if (maxIterations <= 0) {
+			Arrays.fill(values, offset + xFrom, offset + xFrom + count, 0);
+			return;
+		}
+		boolean shortcut = radiusSquared >= MandelbrotCalculator.DEFAULT_RADIUS_SQUARED;
+		int next = xFrom;
+		int end = xFrom + count;
+		//the pixel of each lane, -1 once the lane has no pixel left
+		int x0 = -1, x1 = -1, x2 = -1, x3 = -1;
+		double cr0 = 0, cr1 = 0, cr2 = 0, cr3 = 0;
+		double zr0 = 0, zr1 = 0, zr2 = 0, zr3 = 0;
+		double zi0 = 0, zi1 = 0, zi2 = 0, zi3 = 0;
+		int it0 = 0, it1 = 0, it2 = 0, it3 = 0;
+		while (true) {
+			//refill idle lanes; pixels inside the cardioid or bulb are answered without taking a lane
+			while (x0 < 0 && next < end) {
+				double cr = minReal + next * realStep;
+				if (shortcut && MandelbrotCalculator.isInCardioidOrBulb(cr, cImaginary)) { values[offset + next++] = maxIterations; continue; }
+				x0 = next++; cr0 = cr; zr0 = 0; zi0 = 0; it0 = 0;
+			}
+			while (x1 < 0 && next < end) {
+				double cr = minReal + next * realStep;
+				if (shortcut && MandelbrotCalculator.isInCardioidOrBulb(cr, cImaginary)) { values[offset + next++] = maxIterations; continue; }
+				x1 = next++; cr1 = cr; zr1 = 0; zi1 = 0; it1 = 0;
+			}
+			while (x2 < 0 && next < end) {
+				double cr = minReal + next * realStep;
+				if (shortcut && MandelbrotCalculator.isInCardioidOrBulb(cr, cImaginary)) { values[offset + next++] = maxIterations; continue; }
+				x2 = next++; cr2 = cr; zr2 = 0; zi2 = 0; it2 = 0;
+			}
+			while (x3 < 0 && next < end) {
+				double cr = minReal + next * realStep;
+				if (shortcut && MandelbrotCalculator.isInCardioidOrBulb(cr, cImaginary)) { values[offset + next++] = maxIterations; continue; }
+				x3 = next++; cr3 = cr; zr3 = 0; zi3 = 0; it3 = 0;
+			}
+			if (x0 < 0 && x1 < 0 && x2 < 0 && x3 < 0) {
+				return;
+			}
+			//advance the lanes until one of them finishes; idle lanes iterate harmlessly
+			boolean done0, done1, done2, done3;
+			double sr0, si0, sr1, si1, sr2, si2, sr3, si3;	//the squares of the parts of the Z each lane last tested
+			do {
+				sr0 = zr0 * zr0; si0 = zi0 * zi0;
+				sr1 = zr1 * zr1; si1 = zi1 * zi1;
+				sr2 = zr2 * zr2; si2 = zi2 * zi2;
+				sr3 = zr3 * zr3; si3 = zi3 * zi3;
+				double nzr0 = sr0 - si0 + cr0, nzi0 = 2 * zr0 * zi0 + cImaginary;
+				double nzr1 = sr1 - si1 + cr1, nzi1 = 2 * zr1 * zi1 + cImaginary;
+				double nzr2 = sr2 - si2 + cr2, nzi2 = 2 * zr2 * zi2 + cImaginary;
+				double nzr3 = sr3 - si3 + cr3, nzi3 = 2 * zr3 * zi3 + cImaginary;
+				zr0 = nzr0; zi0 = nzi0;
+				zr1 = nzr1; zi1 = nzi1;
+				zr2 = nzr2; zi2 = nzi2;
+				zr3 = nzr3; zi3 = nzi3;
+				it0++; it1++; it2++; it3++;
+				done0 = x0 >= 0 && ((sr0 + si0) > radiusSquared || it0 >= maxIterations);
+				done1 = x1 >= 0 && ((sr1 + si1) > radiusSquared || it1 >= maxIterations);
+				done2 = x2 >= 0 && ((sr2 + si2) > radiusSquared || it2 >= maxIterations);
+				done3 = x3 >= 0 && ((sr3 + si3) > radiusSquared || it3 >= maxIterations);
+			} while (!(done0 | done1 | done2 | done3));
+			if (done0) { values[offset + x0] = it0; record(moduli, moduliOffset + x0, sr0 + si0 > radiusSquared, cr0, cImaginary, zr0, zi0); x0 = -1; }
+			if (done1) { values[offset + x1] = it1; record(moduli, moduliOffset + x1, sr1 + si1 > radiusSquared, cr1, cImaginary, zr1, zi1); x1 = -1; }
+			if (done2) { values[offset + x2] = it2; record(moduli, moduliOffset + x2, sr2 + si2 > radiusSquared, cr2, cImaginary, zr2, zi2); x2 = -1; }
+			if (done3) { values[offset + x3] = it3; record(moduli, moduliOffset + x3, sr3 + si3 > radiusSquared, cr3, cImaginary, zr3, zi3); x3 = -1; }
+		}
+	}
+
+	/**
+	 * record the modulus of a finished lane, as calcMandel gives it for smooth colouring.
+	 */
+	private static void record(double[] moduli, int index, boolean escaped, double cReal, double cImaginary, double zr, double zi) {
+		if (moduli != null) {
+			moduli[index] = escaped ? MandelbrotCalculator.smoothModulus(cReal, cImaginary, zr, zi) : Double.NaN;
+		}
+	}
+}
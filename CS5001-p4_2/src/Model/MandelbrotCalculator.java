@@ -1,5 +1,10 @@
 package Model;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
 
 /**
  * The MandelbrotCalculator class contains methods which establish the Mandelbrot set.
@@ -18,6 +23,11 @@ package Model;
  * 						MandelbrotCalculator.INITIAL_MAX_ITERATIONS, 
  * 						MandelbrotCalculator.DEFAULT_RADIUS_SQUARED);
  *
+ * The set is rendered by a tile engine: the viewport is split into square tiles which are computed on a fork-join pool,
+ * so that idle workers steal the remaining tiles while the expensive ones near the set boundary are still being iterated.
+ * The tile size and the parallelism can be given to the constructor, and calcMandelbrotSetSequential keeps the original
+ * single-threaded loop available for comparison. Both paths produce identical output.
+ *
  * @author jonl
  *
  */
@@ -32,8 +42,121 @@ public class MandelbrotCalculator {
 
     // Default parameter values
     protected static final double DEFAULT_RADIUS_SQUARED = 4.0;
+    public static final int DEFAULT_TILE_SIZE = 32;
+    // Iterations after which the optimised loop first records the orbit for its periodicity check
+    private static final int FIRST_PERIOD_CHECK = 8;
+    // Iterations an escaped orbit is continued for, so that its modulus gives an accurate continuous iteration count
+    static final int SMOOTHING_ITERATIONS = 4;
+    // The bit iterateOrbit sets in the count of an orbit that escaped, so that an escape at maxIterations is told apart
+    static final int ESCAPED = Integer.MIN_VALUE;
+
+    /**
+     * The escape-time kernels the tile engine can use for each pixel. They produce identical iteration counts.
+     * AUTO, the default, picks the fastest one row by row.
+     */
+    public enum Kernel {
+        /** the plain iteration of calcMandel. */
+        STANDARD,
+        /** calcMandelOptimised: closed-form cardioid and period-2 bulb tests plus periodicity detection. */
+        OPTIMISED,
+        /**
+         * LaneKernel: runs of pixels are iterated four orbits at a time, with the cardioid and bulb test.
+         * Single pixels, such as Mariani-Silver borders, use calcMandel.
+         */
+        LANES,
+        /**
+         * The default: rows go through LaneKernel, which is fastest outside the set, unless the last row estimates that
+         * calcMandelOptimised, whose periodicity check stops orbits inside the set early, would take less time on it.
+         * The estimate is only made above 1024 iterations. Single pixels always use calcMandelOptimised.
+         */
+        AUTO
+    }
 
+    /**
+     * The ways the tile engine can fill a tile.
+     */
+    public enum Strategy {
+        /** every pixel is computed. */
+        BRUTE_FORCE,
+        /**
+         * Mariani-Silver subdivision: only rectangle borders are computed and rectangles with a uniform border outside the set are filled.
+         * Rectangles bordered by the set are cut down and computed, since escaping pixels thinner than the border sampling are
+         * enclosed by it, so the counts are the same as BRUTE_FORCE. Faster on views with large uniform regions outside the set.
+         */
+        MARIANI_SILVER
+    }
 
+    private final int tileSize;
+    private final ForkJoinPool pool;
+    private volatile Kernel kernel = Kernel.AUTO;
+    private volatile Strategy strategy = Strategy.BRUTE_FORCE;
+
+    /**
+     * Creates a calculator using the default tile size and the common fork-join pool.
+     */
+    public MandelbrotCalculator() {
+        this(DEFAULT_TILE_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a calculator with its own fork-join pool.
+     * @param tileSize the side length in pixels of the tiles the viewport is split into.
+     * @param parallelism the number of worker threads used to compute tiles.
+     */
+    public MandelbrotCalculator(int tileSize, int parallelism) {
+        this(tileSize, new ForkJoinPool(parallelism));
+    }
+
+    private MandelbrotCalculator(int tileSize, ForkJoinPool pool) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize must be positive: " + tileSize);
+        }
+        this.tileSize = tileSize;
+        this.pool = pool;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    /**
+     * Selects the escape-time kernel used by the tile engine, e.g. to measure the speedup of the optimised kernel.
+     * The sequential reference path always uses calcMandel. The full resolution double precision renders of ModelCalculator
+     * keep the orbits of their pixels in an OrbitBuffer, which computes them with the loop of calcMandelOptimised whatever the kernel,
+     * so the kernel applies to its preview passes, to the pixels exposed by pans and to every other caller of the tile engine.
+     * @param kernel the kernel to use for the following renders.
+     */
+    public void setKernel(Kernel kernel) {
+        if (kernel == null) {
+            throw new IllegalArgumentException("kernel must not be null");
+        }
+        this.kernel = kernel;
+    }
+
+
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Selects how the tile engine fills full resolution tiles. Reduced density preview passes always sample every block.
+     * @param strategy the strategy to use for the following renders.
+     */
+    public void setStrategy(Strategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("strategy must not be null");
+        }
+        this.strategy = strategy;
+    }
 
     /**
      * Method which calculates the number of iterations over which Z_n+1 = Z_n^2 + C can be applied for Z starting at the origin and a specific constant C (given by its Real and cImaginary components).
@@ -46,7 +169,7 @@ public class MandelbrotCalculator {
      * @param radiusSquared the squared of the radius to use when determining whether Z escaped the circle in the complex plain or remained bounded. The value used is commonly 4.0.
      * @return the number iterations for the value of Z to grow outside of the bounding radius, or maxIterations if it never escaped.
      */
-    private int calcMandel(double cReal, double cImaginary, int maxIterations, double radiusSquared){
+    int calcMandel(double cReal, double cImaginary, int maxIterations, double radiusSquared){
         // To work out Z_n+1 = Z_n^2 + C and establish whether C is in the Mandelbrot set or not
         // we need to
         //    square the current value of Z
@@ -74,10 +197,136 @@ public class MandelbrotCalculator {
         return iterations;
     }
 
+    /**
+     * Version of calcMandelOptimised which also gives the square of the absolute value of Z, from which smooth colouring derives
+     * a continuous iteration count. An orbit that escaped is iterated SMOOTHING_ITERATIONS more times first, so that Z is far
+     * outside the radius; an orbit that did not escape gets NaN.
+     * @param modulusSquared the array receiving the square of the absolute value of the last Z at the given index.
+     * @param index
+     * @return the same count as calcMandel.
+     * @see #calcMandelOptimised(double, double, int, double)
+     */
+    int calcMandel(double cReal, double cImaginary, int maxIterations, double radiusSquared, double[] modulusSquared, int index){
+        if (radiusSquared >= DEFAULT_RADIUS_SQUARED && isInCardioidOrBulb(cReal, cImaginary)) {
+            modulusSquared[index] = Double.NaN;
+            return maxIterations;
+        }
+        return iterateOrbit(cReal, cImaginary, 0, maxIterations, radiusSquared, null, null, modulusSquared, index) & ~ESCAPED;
+    }
+
+    /**
+     * Optimised version of calcMandel returning exactly the same iteration counts.
+     * Points in the main cardioid or in the period-2 bulb are known to stay bounded and return maxIterations without iterating.
+     * For the other points the orbit is compared with a saved value whose position is doubled at regular checkpoints (Brent's method);
+     * if the orbit ever returns exactly to the saved value it is periodic, so it can never escape and maxIterations is returned early.
+     * The comparison is exact rather than within a tolerance because only an exactly repeating double precision orbit is guaranteed
+     * to give the same answer as iterating on to maxIterations.
+     * @see #calcMandel(double, double, int, double)
+     */
+    int calcMandelOptimised(double cReal, double cImaginary, int maxIterations, double radiusSquared){
+        // the closed-form tests assume the orbits inside the set never leave the radius 2 circle
+        if (radiusSquared >= DEFAULT_RADIUS_SQUARED && isInCardioidOrBulb(cReal, cImaginary))
+            return maxIterations;
+        return iterateOrbit(cReal, cImaginary, 0, maxIterations, radiusSquared, null, null, null, 0) & ~ESCAPED;
+    }
+
+    /**
+     * The loop of calcMandelOptimised, without the cardioid and bulb test, shared by every caller that needs more than the count:
+     * the smooth colouring kernels, which record the modulus of an escaped orbit, and OrbitBuffer, which stops an orbit at
+     * maxIterations and continues it later.
+     * @param iterations the number of iterations the orbit has already taken.
+     * @param zr the real parts of the orbits, whose element at index holds the Z the orbit continues from and receives its last Z,
+     * or NaN once the orbit escaped or proved periodic; null to start from Z = 0 without keeping the orbit.
+     * @param zi the imaginary parts, null if zr is.
+     * @param modulusSquared the array receiving at index the square of the absolute value of Z after SMOOTHING_ITERATIONS more
+     * iterations if the orbit escaped, and NaN otherwise; may be null.
+     * @param index
+     * @return the iteration count, with the ESCAPED bit set if the orbit escaped. An orbit proved periodic returns maxIterations.
+     */
+    static int iterateOrbit(double cReal, double cImaginary, int iterations, int maxIterations, double radiusSquared,
+            double[] zr, double[] zi, double[] modulusSquared, int index){
+        double r = zr == null ? 0 : zr[index];
+        double i = zr == null ? 0 : zi[index];
+        double savedR = r;
+        double savedI = i;
+        int interval = FIRST_PERIOD_CHECK;
+        int nextCheck = iterations + interval;
+        boolean outside = false;
+        while (iterations < maxIterations && !outside) {
+            double r2 = r * r;
+            double i2 = i * i;
+            double nr = r2 - i2 + cReal;
+            double ni = 2 * r * i + cImaginary;
+            r = nr;
+            i = ni;
+            if ((r2 + i2) > radiusSquared)
+                outside = true;
+            iterations++;
+            if (!outside) {
+                if (r == savedR && i == savedI) {
+                    iterations = maxIterations;
+                    r = Double.NaN;
+                    break;
+                }
+                if (iterations == nextCheck) {
+                    savedR = r;
+                    savedI = i;
+                    interval <<= 1;
+                    nextCheck = iterations + interval;
+                }
+            }
+        }
+        if (modulusSquared != null)
+            modulusSquared[index] = outside ? smoothModulus(cReal, cImaginary, r, i) : Double.NaN;
+        if (zr != null) {
+            zr[index] = outside ? Double.NaN : r;
+            zi[index] = i;
+        }
+        return outside ? iterations | ESCAPED : iterations;
+    }
+
+    /**
+     * @return the square of the absolute value of Z after SMOOTHING_ITERATIONS more iterations of an escaped orbit at Z.
+     */
+    static double smoothModulus(double cReal, double cImaginary, double zr, double zi){
+        for (int i = 0; i < SMOOTHING_ITERATIONS; i++) {
+            double nzr = zr * zr - zi * zi + cReal;
+            zi = 2 * zr * zi + cImaginary;
+            zr = nzr;
+        }
+        return zr * zr + zi * zi;
+    }
+
+    /**
+     * Closed-form test for the two largest components of the Mandelbrot set, whose points never escape.
+     * @return true if C lies in the main cardioid or in the period-2 bulb.
+     */
+    static boolean isInCardioidOrBulb(double cReal, double cImaginary){
+        double ci2 = cImaginary * cImaginary;
+        // main cardioid: q(q + (x - 1/4)) <= y^2 / 4 with q = (x - 1/4)^2 + y^2
+        double xq = cReal - 0.25;
+        double q = xq * xq + ci2;
+        if (q * (q + xq) <= 0.25 * ci2)
+            return true;
+        // period-2 bulb: (x + 1)^2 + y^2 <= 1/16
+        double xb = cReal + 1.0;
+        return xb * xb + ci2 <= 0.0625;
+    }
+
+    /**
+     * Computes the iteration count of one pixel with the selected kernel.
+     */
+    int escapeTime(double cReal, double cImaginary, int maxIterations, double radiusSquared){
+        if (kernel == Kernel.OPTIMISED || kernel == Kernel.AUTO)
+            return calcMandelOptimised(cReal, cImaginary, maxIterations, radiusSquared);
+        return calcMandel(cReal, cImaginary, maxIterations, radiusSquared);
+    }
+
 
 
     /**
      * Method to calculate the Mandelbrot set for the given parameter settings.
+     * The viewport is split into tiles of tileSize x tileSize pixels which are computed in parallel on the fork-join pool.
      * @param xResolution the number of pixels on the x-axis in your GUI display.
      * @param yResolution the number of pixels on the y-axis in your GUI display.
      * @param minReal the lower real bound for the complex constant C (equivalent to lower bound X value in Mandelbrot set)
@@ -88,6 +337,230 @@ public class MandelbrotCalculator {
      * @return the 2-D integer array mandelbrotData[yResolution][xResolution] containing the for each [y][x] pixel the number of iterations needed until Z escaped the bounding radius, or maxIterations otherwise.
      */
     public int[][] calcMandelbrotSet(int xResolution, int yResolution, double minReal, double maxReal, double minImaginary, double maxImaginary, int maxIterations, double radiusSquared){
+        final int[][] mandelbrotData = new int[yResolution][xResolution];
+        calcMandelbrotSet(new MandelbrotSink() {
+            public void tileComputed(int x, int y, int width, int height, int[] values, int offset, int scanline) {
+                for (int j = 0; j < height; j++) {
+                    System.arraycopy(values, offset + j * scanline, mandelbrotData[y + j], x, width);
+                }
+            }
+        }, xResolution, yResolution, minReal, maxReal, minImaginary, maxImaginary, maxIterations, radiusSquared);
+        return mandelbrotData;
+    }
+
+    /**
+     * Method to calculate the Mandelbrot set into a caller-supplied flat array, so that the same array can be reused for every frame.
+     * @param mandelbrotData the array of at least xResolution * yResolution elements that receives the value of pixel (x, y) at index y * xResolution + x.
+     * @see #calcMandelbrotSet(int, int, double, double, double, double, int, double)
+     */
+    public void calcMandelbrotSet(int[] mandelbrotData, int xResolution, int yResolution, double minReal, double maxReal, double minImaginary, double maxImaginary, int maxIterations, double radiusSquared){
+        calcMandelbrotSet(mandelbrotData, xResolution, yResolution, minReal, maxReal, minImaginary, maxImaginary, maxIterations, radiusSquared, 1, null, null);
+    }
+
+    /**
+     * Method to calculate the Mandelbrot set into an IntBuffer, starting at its current position, which is left unchanged.
+     * Buffers backed by an array are filled in place; direct buffers are filled tile by tile.
+     * @param mandelbrotData the buffer with at least xResolution * yResolution elements remaining, in row-major order.
+     * @see #calcMandelbrotSet(int, int, double, double, double, double, int, double)
+     */
+    public void calcMandelbrotSet(final IntBuffer mandelbrotData, final int xResolution, int yResolution, double minReal, double maxReal, double minImaginary, double maxImaginary, int maxIterations, double radiusSquared){
+        if (mandelbrotData.remaining() < xResolution * yResolution) {
+            throw new IllegalArgumentException("buffer too small: " + mandelbrotData.remaining() + " < " + xResolution * yResolution);
+        }
+        final int start = mandelbrotData.position();
+        if (mandelbrotData.hasArray()) {
+            calcMandelbrotSet(mandelbrotData.array(), mandelbrotData.arrayOffset() + start, xResolution, yResolution,
+                    minReal, maxReal, minImaginary, maxImaginary, maxIterations, radiusSquared, 1, null, null);
+            return;
+        }
+        calcMandelbrotSet(new MandelbrotSink() {
+            public void tileComputed(int x, int y, int width, int height, int[] values, int offset, int scanline) {
+                for (int j = 0; j < height; j++) {
+                    int row = start + (y + j) * xResolution + x;
+                    for (int i = 0; i < width; i++) {
+                        mandelbrotData.put(row + i, values[offset + j * scanline + i]);
+                    }
+                }
+            }
+        }, xResolution, yResolution, minReal, maxReal, minImaginary, maxImaginary, maxIterations, radiusSquared);
+    }
+
+    /**
+     * Method to stream the Mandelbrot set to a sink tile by tile without any intermediate array of the whole image.
+     * Each worker thread computes its tiles into a reusable scratch buffer that is handed to the sink.
+     * @param sink receives every tile as soon as it is computed.
+     * @see #calcMandelbrotSet(int, int, double, double, double, double, int, double)
+     */
+    public void calcMandelbrotSet(MandelbrotSink sink, int xResolution, int yResolution, double minReal, double maxReal, double minImaginary, double maxImaginary, int maxIterations, double radiusSquared){
+        calcMandelbrotSet(null, xResolution, yResolution, minReal, maxReal, minImaginary, maxImaginary, maxIterations, radiusSquared, 1, sink, null);
+    }
+
+    /**
+     * Method to calculate the Mandelbrot set with full control over the output, the sampling density and the progress reporting.
+     * With a step greater than one only the top-left pixel of every step x step block is computed and its value copied over the block,
+     * which gives a cheap preview of the image. The sink is notified from the worker threads as tiles finish, and the render stops
+     * early, leaving the array partially filled, as soon as the cancelled supplier returns true.
+     * @param mandelbrotData the flat array receiving the value of pixel (x, y) at index y * xResolution + x, or null to only stream tiles to the sink.
+     * @param step the side length of the blocks sampled by one computed pixel, 1 for a full render.
+     * @param sink notified after each tile is finished, may be null.
+     * @param cancelled polled between rows to abandon the render, may be null.
+     * @see #calcMandelbrotSet(int, int, double, double, double, double, int, double)
+     */
+    public void calcMandelbrotSet(int[] mandelbrotData, int xResolution, int yResolution, double minReal, double maxReal, double minImaginary, double maxImaginary,
+            int maxIterations, double radiusSquared, int step, MandelbrotSink sink, BooleanSupplier cancelled){
+        calcMandelbrotSet(mandelbrotData, 0, xResolution, yResolution, minReal, maxReal, minImaginary, maxImaginary, maxIterations, radiusSquared, step, sink, cancelled);
+    }
+
+    private void calcMandelbrotSet(int[] mandelbrotData, int offset, int xResolution, int yResolution, double minReal, double maxReal, double minImaginary, double maxImaginary,
+            int maxIterations, double radiusSquared, int step, MandelbrotSink sink, BooleanSupplier cancelled){
+        if (step < 1) {
+            throw new IllegalArgumentException("step must be positive: " + step);
+        }
+        if (mandelbrotData != null && mandelbrotData.length - offset < xResolution * yResolution) {
+            throw new IllegalArgumentException("array too small: " + (mandelbrotData.length - offset) + " < " + xResolution * yResolution);
+        }
+        double realStep = (maxReal - minReal)/xResolution;
+        double imaginaryStep = (maxImaginary - minImaginary)/yResolution;
+
+        pool.invoke(new TileRenderTask(new TileRenderTask.Job(this, mandelbrotData, offset, xResolution, yResolution, tileSize,
+                minReal, minImaginary, realStep, imaginaryStep, maxIterations, radiusSquared, step, sink, cancelled, null)));
+    }
+
+    /**
+     * Method to run the tile engine with pixels computed by another engine.
+     * @param mandelbrotData the flat array receiving the value of pixel (x, y) at index y * xResolution + x, or null to only stream tiles to the sink.
+     * @param pixels computes the iteration count of each pixel.
+     * @see #calcMandelbrotSet(int[], int, int, double, double, double, double, int, double, int, MandelbrotSink, BooleanSupplier)
+     */
+    void calcMandelbrotSet(int[] mandelbrotData, int xResolution, int yResolution, PixelFunction pixels, int step, MandelbrotSink sink, BooleanSupplier cancelled){
+        if (step < 1) {
+            throw new IllegalArgumentException("step must be positive: " + step);
+        }
+        pool.invoke(new TileRenderTask(new TileRenderTask.Job(this, mandelbrotData, 0, xResolution, yResolution, tileSize,
+                0, 0, 0, 0, 0, 0, step, sink, cancelled, pixels)));
+    }
+
+    /**
+     * Method to calculate one rectangle of the pixels of a view, e.g. a strip newly exposed by a pan.
+     * Every pixel gets the same constant C as in a render of the whole view, so its value is the same.
+     * @param mandelbrotData the flat array of the whole view receiving the value of pixel (x, y) at index y * xResolution + x.
+     * @param x0 the first column of the rectangle.
+     * @param y0 the first row of the rectangle.
+     * @param width the number of columns of the rectangle.
+     * @param height the number of rows of the rectangle.
+     * @param sink notified with the coordinates of the whole view after each tile is finished, may be null.
+     * @param cancelled polled between rows to abandon the render, may be null.
+     * @see #calcMandelbrotSet(int[], int, int, double, double, double, double, int, double, int, MandelbrotSink, BooleanSupplier)
+     */
+    void calcMandelbrotRegion(final int[] mandelbrotData, final int xResolution, int yResolution, final double minReal, double maxReal, final double minImaginary, double maxImaginary,
+            final int maxIterations, final double radiusSquared, final int x0, final int y0, int width, int height, final MandelbrotSink sink, BooleanSupplier cancelled){
+        if (x0 < 0 || y0 < 0 || x0 + width > xResolution || y0 + height > yResolution) {
+            throw new IllegalArgumentException("region outside the view: " + width + "x" + height + " at " + x0 + "," + y0);
+        }
+        final double realStep = (maxReal - minReal)/xResolution;
+        final double imaginaryStep = (maxImaginary - minImaginary)/yResolution;
+        calcMandelbrotSet(null, width, height, new PixelFunction() {
+            public int valueAt(int x, int y) {
+                return escapeTime(minReal + (x0 + x) * realStep, minImaginary + (y0 + y) * imaginaryStep, maxIterations, radiusSquared);
+            }
+        }, 1, new MandelbrotSink() {
+            public void tileComputed(int x, int y, int w, int h, int[] values, int offset, int scanline) {
+                int origin = (y0 + y) * xResolution + x0 + x;
+                for (int j = 0; j < h; j++) {
+                    System.arraycopy(values, offset + j * scanline, mandelbrotData, origin + j * xResolution, w);
+                }
+                if (sink != null) {
+                    sink.tileComputed(x0 + x, y0 + y, w, h, mandelbrotData, origin, xResolution);
+                }
+            }
+        }, cancelled);
+    }
+
+    /**
+     * Method to calculate the iteration counts at points of a double precision view, with the coordinate formula of a render.
+     * @see ViewRenderer#sample(int[], int, int, MandelbrotParam, double[], double[], BooleanSupplier)
+     * @see #calcMandelbrotSet(int[], int, int, double, double, double, double, int, double, int, MandelbrotSink, BooleanSupplier)
+     */
+    void sample(int[] counts, int xResolution, int yResolution, final double minReal, double maxReal, final double minImaginary, double maxImaginary,
+            final int maxIterations, final double radiusSquared, final double[] xs, final double[] ys, BooleanSupplier cancelled){
+        final double realStep = (maxReal - minReal)/xResolution;
+        final double imaginaryStep = (maxImaginary - minImaginary)/yResolution;
+        calcMandelbrotSet(counts, xs.length, 1, new PixelFunction() {
+            public int valueAt(int k, int y) {
+                return escapeTime(minReal + xs[k] * realStep, minImaginary + ys[k] * imaginaryStep, maxIterations, radiusSquared);
+            }
+        }, 1, null, cancelled);
+    }
+
+    /**
+     * Method to calculate the Mandelbrot set together with the final modulus of the orbit of every pixel, for smooth colouring,
+     * at about the cost of a plain render. The rows go through the LaneKernel as in a plain render with the LANES and AUTO kernels,
+     * and single pixels through the loop of calcMandelOptimised, which is the only single pixel loop that records the modulus.
+     * Every pixel is computed whatever the strategy, since a pixel filled in would have no modulus.
+     * @param mandelbrotData the flat array receiving the value of pixel (x, y) at index y * xResolution + x, not null.
+     * @param moduli the array receiving the square of the final absolute value of Z of pixel (x, y) at index y * xResolution + x,
+     * or NaN for the pixels inside the set.
+     * @see #calcMandel(double, double, int, double, double[], int)
+     * @see #calcMandelbrotSet(int[], int, int, double, double, double, double, int, double, int, MandelbrotSink, BooleanSupplier)
+     */
+    void calcMandelbrotSmooth(int[] mandelbrotData, double[] moduli, int xResolution, int yResolution, double minReal, double maxReal,
+            double minImaginary, double maxImaginary, int maxIterations, double radiusSquared, MandelbrotSink sink, BooleanSupplier cancelled){
+        if (mandelbrotData.length < xResolution * yResolution) {
+            throw new IllegalArgumentException("array too small: " + mandelbrotData.length + " < " + xResolution * yResolution);
+        }
+        double realStep = (maxReal - minReal)/xResolution;
+        double imaginaryStep = (maxImaginary - minImaginary)/yResolution;
+        Arrays.fill(moduli, 0, xResolution * yResolution, Double.NaN);
+        pool.invoke(new TileRenderTask(new TileRenderTask.Job(this, mandelbrotData, 0, xResolution, yResolution, tileSize,
+                minReal, minImaginary, realStep, imaginaryStep, maxIterations, radiusSquared, 1, sink, cancelled, null, moduli)));
+    }
+
+    /**
+     * Method to calculate the final modulus of the orbit of every pixel of a view whose iteration counts are known, for smooth colouring.
+     * An orbit is only iterated up to its known count, plus the smoothing iterations, so pixels inside the set cost nothing,
+     * e.g. for counts restored from a cache. The rows are shared out between the workers of the pool.
+     * @param counts the row-major iteration counts of the view.
+     * @param moduli the array receiving the square of the final absolute value of Z of pixel (x, y) at index y * xResolution + x,
+     * or NaN for the pixels inside the set.
+     * @param cancelled polled between rows to abandon the pass, may be null.
+     * @see #calcMandel(double, double, int, double, double[], int)
+     */
+    void calcModuli(final int[] counts, final double[] moduli, final int xResolution, int yResolution, final double minReal, double maxReal,
+            final double minImaginary, double maxImaginary, final int maxIterations, final double radiusSquared, final BooleanSupplier cancelled){
+        final double realStep = (maxReal - minReal)/xResolution;
+        final double imaginaryStep = (maxImaginary - minImaginary)/yResolution;
+        pool.submit(() -> IntStream.range(0, yResolution).parallel().forEach(y -> {
+            if (cancelled != null && cancelled.getAsBoolean()) {
+                return;
+            }
+            double cImaginary = minImaginary + y * imaginaryStep;
+            for (int x = 0, i = y * xResolution; x < xResolution; x++, i++) {
+                if (counts[i] >= maxIterations) {
+                    moduli[i] = Double.NaN;
+                } else {
+                    calcMandel(minReal + x * realStep, cImaginary, counts[i], radiusSquared, moduli, i);
+                }
+            }
+        })).join();
+    }
+
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Method to calculate the Mandelbrot set for the given parameter settings on the calling thread, one pixel after another.
+     * This is the reference implementation the tile engine is compared against.
+     * @param xResolution the number of pixels on the x-axis in your GUI display.
+     * @param yResolution the number of pixels on the y-axis in your GUI display.
+     * @param minReal the lower real bound for the complex constant C (equivalent to lower bound X value in Mandelbrot set)
+     * @param maxReal the upper real bound for the complex constant C (equivalent to upper bound X value in Mandelbrot set)
+     * @param minImaginary the lower imaginary bound for the complex constant C (equivalent to lower bound Y value in Mandelbrot set)
+     * @param maxIterations the maximum number of iterations to iterate the complex formula
+     * @param radiusSquared the squared of the radius to use when determining whether Z escaped the circle in the complex plain or remained bounded.
+     * @return the 2-D integer array mandelbrotData[yResolution][xResolution] containing the for each [y][x] pixel the number of iterations needed until Z escaped the bounding radius, or maxIterations otherwise.
+     */
+    public int[][] calcMandelbrotSetSequential(int xResolution, int yResolution, double minReal, double maxReal, double minImaginary, double maxImaginary, int maxIterations, double radiusSquared){
         int[][] mandelbrotData = new int[yResolution][xResolution];
         double realRange = maxReal - minReal;
 
@@ -1,9 +1,15 @@
 package Model;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.MathContext;
 
 /**
  * The MandelbrotParam class that contains all the parameters to calculate and generate the Mandelbrot Set image.
  * The colour is changed in a preset order.
+ * The view is held as an arbitrary-precision centre and the real and imaginary spans, so that deep zooms keep their position
+ * once the bounds can no longer be told apart in double precision. The bounds are still available as doubles for the double kernels.
  * @author 170024030
  */
 public class MandelbrotParam implements Serializable{
@@ -16,6 +22,14 @@ public class MandelbrotParam implements Serializable{
 	private int maxIteration;
 	//the colour scheme
 	private String colorScheme;
+	//the exact centre of the view and its size, null and 0 in data saved before they existed
+	private BigDecimal centreReal;
+	private BigDecimal centreImag;
+	private double realSpan;
+	private double imagSpan;
+	//the number of significant digits kept beyond those needed to resolve the spans
+	private static final int GUARD_DIGITS = 20;
+
 	public MandelbrotParam(double minReal, double maxReal, double minImag, double maxImag, String colorScheme, int maxIteration) {
 		this.minReal = minReal;
 		this.minImag = minImag;
@@ -23,6 +37,125 @@ public class MandelbrotParam implements Serializable{
 		this.maxImag = maxImag;
 		this.colorScheme = colorScheme;
 		this.maxIteration = maxIteration;
+		deriveCentre();
+	}
+
+	/**
+	 * build a state from an exact centre and the size of the view.
+	 * @param centreReal
+	 * @param centreImag
+	 * @param realSpan the width of the view on the real axis
+	 * @param imagSpan the height of the view on the imaginary axis
+	 * @param colorScheme
+	 * @param maxIteration
+	 */
+	public MandelbrotParam(BigDecimal centreReal, BigDecimal centreImag, double realSpan, double imagSpan, String colorScheme, int maxIteration) {
+		MathContext mc = precisionFor(Math.min(Math.abs(realSpan), Math.abs(imagSpan)));
+		this.centreReal = centreReal.round(mc);
+		this.centreImag = centreImag.round(mc);
+		this.realSpan = realSpan;
+		this.imagSpan = imagSpan;
+		this.colorScheme = colorScheme;
+		this.maxIteration = maxIteration;
+		deriveBounds();
+	}
+
+	/**
+	 * build a state showing the same view as another one with a different colour scheme and max iteration number.
+	 * @param view the state whose view is kept
+	 * @param colorScheme
+	 * @param maxIteration
+	 */
+	public MandelbrotParam(MandelbrotParam view, String colorScheme, int maxIteration) {
+		this(view.centreReal, view.centreImag, view.realSpan, view.imagSpan, colorScheme, maxIteration);
+	}
+
+	/**
+	 * rebuild a state from all its fields, as read back by SessionFile, so that it compares equal to the state that was saved.
+	 */
+	MandelbrotParam(BigDecimal centreReal, BigDecimal centreImag, double realSpan, double imagSpan,
+			double minReal, double maxReal, double minImag, double maxImag, String colorScheme, int maxIteration) {
+		this.centreReal = centreReal;
+		this.centreImag = centreImag;
+		this.realSpan = realSpan;
+		this.imagSpan = imagSpan;
+		this.minReal = minReal;
+		this.maxReal = maxReal;
+		this.minImag = minImag;
+		this.maxImag = maxImag;
+		this.colorScheme = colorScheme;
+		this.maxIteration = maxIteration;
+	}
+
+	/**
+	 * the precision needed to locate points a fraction of the given span apart around a centre of magnitude up to 2.
+	 */
+	static MathContext precisionFor(double span) {
+		int digits = span > 0 ? (int) Math.ceil(-Math.log10(span)) : 0;
+		return new MathContext(Math.max(digits, 0) + GUARD_DIGITS);
+	}
+
+	private void deriveCentre() {
+		realSpan = maxReal - minReal;
+		imagSpan = maxImag - minImag;
+		BigDecimal two = BigDecimal.valueOf(2);
+		centreReal = new BigDecimal(minReal).add(new BigDecimal(maxReal)).divide(two);
+		centreImag = new BigDecimal(minImag).add(new BigDecimal(maxImag)).divide(two);
+	}
+
+	private void deriveBounds() {
+		minReal = centreReal.doubleValue() - realSpan / 2;
+		maxReal = centreReal.doubleValue() + realSpan / 2;
+		minImag = centreImag.doubleValue() - imagSpan / 2;
+		maxImag = centreImag.doubleValue() + imagSpan / 2;
+	}
+
+	/**
+	 * data saved before the centre existed only holds the bounds.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (centreReal == null || centreImag == null) {
+			deriveCentre();
+		}
+	}
+
+	/**
+	 * build the state of the sub-view of this one with the given pixel bounds, in a view of the given resolution.
+	 * The arithmetic is done on the exact centre so that it stays accurate at any depth.
+	 * @param left the left edge of the sub-view in pixels
+	 * @param top the top edge of the sub-view in pixels
+	 * @param right the right edge of the sub-view in pixels
+	 * @param bottom the bottom edge of the sub-view in pixels
+	 * @param width the width of this view in pixels
+	 * @param height the height of this view in pixels
+	 * @return the new state, with the same colour scheme and max iteration number
+	 */
+	public MandelbrotParam zoomTo(double left, double top, double right, double bottom, double width, double height) {
+		double realOffset = ((left + right) / 2 / width - 0.5) * realSpan;
+		double imagOffset = ((top + bottom) / 2 / height - 0.5) * imagSpan;
+		return new MandelbrotParam(centreReal.add(new BigDecimal(realOffset)),
+				centreImag.add(new BigDecimal(imagOffset)),
+				(right - left) / width * realSpan,
+				(bottom - top) / height * imagSpan,
+				colorScheme,
+				maxIteration);
+	}
+
+	public BigDecimal getCentreReal() {
+		return centreReal;
+	}
+
+	public BigDecimal getCentreImag() {
+		return centreImag;
+	}
+
+	public double getRealSpan() {
+		return realSpan;
+	}
+
+	public double getImagSpan() {
+		return imagSpan;
 	}
 	
 	public double getMinReal() {
@@ -64,4 +197,48 @@ public class MandelbrotParam implements Serializable{
 	public int getMaxIteration() {
 		return maxIteration;
 	}
+
+	/**
+	 * check whether another state has the same iteration counts as this one, i.e. differs at most in its colour scheme.
+	 * @param mp
+	 * @return true if the view and the max iteration number are the same.
+	 */
+	public boolean hasSameIterations(MandelbrotParam mp) {
+		return hasSameView(mp) && maxIteration == mp.maxIteration;
+	}
+
+	/**
+	 * check whether another state shows the same region of the complex plane as this one, whatever its max iteration number and colour scheme.
+	 * @param mp
+	 * @return true if the centre and the spans are the same.
+	 */
+	public boolean hasSameView(MandelbrotParam mp) {
+		return mp != null
+				&& centreReal.compareTo(mp.centreReal) == 0
+				&& centreImag.compareTo(mp.centreImag) == 0
+				&& Double.compare(realSpan, mp.realSpan) == 0
+				&& Double.compare(imagSpan, mp.imagSpan) == 0;
+	}
+
+	/**
+	 * two states are equal when they would produce the same image.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof MandelbrotParam)) return false;
+		MandelbrotParam mp = (MandelbrotParam) o;
+		return hasSameIterations(mp) && colorScheme.equals(mp.colorScheme);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = centreReal.stripTrailingZeros().hashCode();
+		result = 31 * result + centreImag.stripTrailingZeros().hashCode();
+		result = 31 * result + Double.hashCode(realSpan);
+		result = 31 * result + Double.hashCode(imagSpan);
+		result = 31 * result + maxIteration;
+		result = 31 * result + colorScheme.hashCode();
+		return result;
+	}
 }
\ No newline at end of file
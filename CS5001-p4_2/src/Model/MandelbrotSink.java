@@ -0,0 +1,24 @@
+package Model;
+
+/**
+ * The MandelbrotSink interface receives the Mandelbrot data tile by tile as the tile engine produces it,
+ * so that a consumer can colour, encode or forward the values without waiting for, or allocating, the whole array.
+ * It is called from the worker thread that computed the tile, so implementations must be thread-safe.
+ * @author 170024030
+ *
+ */
+public interface MandelbrotSink {
+	/**
+	 * called once the pixels of the given rectangle hold their final values for the current pass.
+	 * The value of pixel (x + i, y + j) is values[offset + j * scanline + i]. The array may be a scratch buffer
+	 * that is reused for the next tile, so the values must be consumed before returning.
+	 * @param x the left pixel column of the tile.
+	 * @param y the top pixel row of the tile.
+	 * @param width the width of the tile in pixels.
+	 * @param height the height of the tile in pixels.
+	 * @param values the array holding the iteration counts of the tile.
+	 * @param offset the index of pixel (x, y) in values.
+	 * @param scanline the distance in values between two rows of the tile.
+	 */
+	void tileComputed(int x, int y, int width, int height, int[] values, int offset, int scanline);
+}
@@ -1,17 +1,27 @@
 package Model;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
 
 import javax.imageio.ImageIO;
 
@@ -30,13 +40,95 @@ public class ModelCalculator {
 	public static final double INITIAL_MAX_IMAGINARY = 1.25;
 	public static final String INITIAL_COLOR_SCHEME = "BnW";
 	public static final int INITIAL_MAX_ITERATIONS = 50;
-	private BufferedImage image;	//the image generated from Mandelbrot data
+	//the largest max iteration number accepted, whose palette takes 4 MB and whose reference orbits take 24 MB
+	public static final int MAX_ITERATIONS = 1000000;
+	//the sampling steps of the progressive render: a coarse preview first, then the full resolution
+	public static final int[] PROGRESSIVE_STEPS = {8, 1};
+	//the sampling steps once the previous view has been reprojected as a preview
+	private static final int[] REFINEMENT_STEPS = {1};
+	//the reduced resolutions of the previews rendered while the user interacts, as divisors of the image size
+	public static final int[] PREVIEW_DIVISORS = {4, 8};
+	//the time a preview may take before the next one uses the coarser divisor, for 30 previews per second
+	private static final long PREVIEW_BUDGET_NANOS = 1000000000L / 30;
+	//the default memory budget of the iteration cache, about 25 views of 800x800
+	public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+	//a single background thread drives the renders so that at most one of them is in flight
+	private static final ExecutorService RENDER_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "mandelbrot-render");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private volatile BufferedImage image;	//the image generated from Mandelbrot data, replaced on the render thread when it is resized
 	private int stateIndex;	//the index of current state
-	private int width;	//the width of the image
-	private int height;	//the height of the image
+	private volatile int width;	//the width of the image
+	private volatile int height;	//the height of the image
+	private volatile double pixelScale = 1;	//the pixels of the image per logical pixel of the screen, above 1 on HiDPI screens
+	private double baseWidth;	//the width in logical pixels of the screen the spans of the history are given for
+	private double baseHeight;
+	private int bufferWidth;	//the size of the buffers and of the image, which follows the size of the image on the render thread
+	private int bufferHeight;
 	private ArrayList<MandelbrotParam> data;	//the list used to implement redo and undo
-	private ObjectInputStream ois;
-	private ObjectOutputStream oos;
+	private MandelbrotCalculator mandelCalc;	//the tile engine shared by every update
+	private ViewRenderer renderer;	//picks the engine each view needs, on the shared tile engine
+	private int[] iterations;	//the reusable row-major buffer of iteration counts of the current render
+	private OrbitBuffer orbits;	//the unresolved orbits of the last double precision view, to change its max iteration number cheaply
+	private IterationCache iterationCache;	//the buffers of recently rendered views, for undo and redo
+	private MandelbrotParam iterationsState;	//the state whose complete counts are in the iteration buffer, null while it is being overwritten
+	private boolean iterationsReprojected;	//whether part of those counts were reprojected by a pan, so they are close but not exact
+	private int[] previousIterations;	//the counts of the last complete render, reprojected into the next view as its preview
+	private MandelbrotParam previousState;	//the state whose counts are in previousIterations, null if none
+	private double[] moduli;	//the final moduli of the orbits of the iteration buffer, for smooth colouring
+	private MandelbrotParam moduliState;	//the state whose counts the moduli were computed from, null if none
+	private volatile boolean smoothColouring;	//whether images are coloured by SmoothColouring instead of the linear palettes
+	private volatile IterationTiles savedIterations;	//the counts stored in the last session file loaded, null if none
+	private volatile MandelbrotParam renderedState;	//the state the image was last rendered from, null if none
+	private volatile int renderedWidth;	//the width the image was last rendered at
+	private volatile int renderedHeight;	//the height the image was last rendered at
+	private MandelbrotParam pendingState;	//the state of the background render in flight, null if none
+	private volatile Preview preview;	//the last preview rendered, null if none
+	private MandelbrotParam pendingPreview;	//the state of the preview in flight, null if none
+	private int pendingPreviewWidth;	//the image width the preview in flight is reduced from
+	private int pendingPreviewHeight;
+	private int previewLevel;	//the index in PREVIEW_DIVISORS of the divisor of the next preview, on the render thread
+	private final AtomicLong renderGeneration = new AtomicLong();	//bumped to cancel the background render in flight
+	private final Object imageLock = new Object();	//guards writes to the image by background renders
+
+	/**
+	 * A reduced resolution render of a state, drawn scaled up while the user interacts and used as the coarse pass of its full render.
+	 */
+	private static final class Preview {
+		final MandelbrotParam state;
+		final int[] counts;
+		final int width;
+		final int height;
+		final int fullWidth;	//the size of the full resolution image it previews
+		final int fullHeight;
+		final BufferedImage image;
+
+		Preview(MandelbrotParam state, int[] counts, int width, int height, int fullWidth, int fullHeight, BufferedImage image) {
+			this.state = state;
+			this.counts = counts;
+			this.width = width;
+			this.height = height;
+			this.fullWidth = fullWidth;
+			this.fullHeight = fullHeight;
+			this.image = image;
+		}
+
+		/**
+		 * copy the counts over a full resolution buffer, each one over the block of pixels it samples.
+		 */
+		void upscale(int[] iterations, int fullWidth, int fullHeight) {
+			for (int y = 0; y < fullHeight; y++) {
+				int row = (int) ((long) y * height / fullHeight) * width;
+				for (int x = 0, i = y * fullWidth; x < fullWidth; x++, i++) {
+					iterations[i] = counts[row + (int) ((long) x * width / fullWidth)];
+				}
+			}
+		}
+	}
 	
 	/**
 	 * The constructor.
@@ -46,6 +138,10 @@ public class ModelCalculator {
 	public ModelCalculator(int width, int height) {
 		this.width = width;
 		this.height = height;
+		this.baseWidth = width;
+		this.baseHeight = height;
+		this.bufferWidth = width;
+		this.bufferHeight = height;
 		this.stateIndex = 0;
 		this.data = new ArrayList<MandelbrotParam>() {
 			private static final long serialVersionUID = 1L;
@@ -58,6 +154,18 @@ public class ModelCalculator {
 					INITIAL_MAX_ITERATIONS));
 		}};
 		this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		this.mandelCalc = new MandelbrotCalculator();
+		this.renderer = new ViewRenderer(mandelCalc);
+		this.iterations = new int[width * height];
+		this.orbits = new OrbitBuffer(width, height);
+		this.previousIterations = new int[width * height];
+		this.moduli = new double[width * height];
+		this.iterationCache = new IterationCache(DEFAULT_CACHE_BYTES, 0);
+		RenderMetrics.global().gauge("iteration cache hit rate", new DoubleSupplier() {
+			public double getAsDouble() {
+				return iterationCache.getHitRate();
+			}
+		});
 	}
 
 	/**
@@ -73,6 +181,7 @@ public class ModelCalculator {
 	 * @param stateIndex
 	 */
 	public void setStateIndex(int stateIndex) {
+		cancelRender();
 		this.stateIndex = stateIndex;
 	}
 	
@@ -84,6 +193,41 @@ public class ModelCalculator {
 		return data;
 	}
 
+	/**
+	 * getter of the iteration cache, e.g. to read its hit and miss counters.
+	 * @return
+	 */
+	public IterationCache getIterationCache() {
+		return iterationCache;
+	}
+
+	/**
+	 * setter of the iteration cache, e.g. to change its budgets or to share it with another model.
+	 * @param iterationCache
+	 */
+	public void setIterationCache(IterationCache iterationCache) {
+		this.iterationCache = iterationCache;
+	}
+
+	/**
+	 * getter of the colouring mode
+	 * @return true if images are coloured by histogram equalisation of a continuous iteration count.
+	 */
+	public boolean isSmoothColouring() {
+		return smoothColouring;
+	}
+
+	/**
+	 * setter of the colouring mode. The render in flight is cancelled and the next update colours the image again,
+	 * from the counts already computed when the state did not change.
+	 * @param smoothColouring true to colour images with SmoothColouring, false for the linear palettes.
+	 */
+	public void setSmoothColouring(boolean smoothColouring) {
+		cancelRender();
+		this.smoothColouring = smoothColouring;
+		invalidateImage();
+	}
+
 	/**
 	 * getter of the current state.
 	 * @return
@@ -91,27 +235,670 @@ public class ModelCalculator {
 	public MandelbrotParam getState() {
 		return data.get(stateIndex);
 	}
+
 	/**
-	 * update the image with current parameters
+	 * getter of the width of the image in pixels
+	 * @return
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * getter of the height of the image in pixels
+	 * @return
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * getter of the pixels of the image per logical pixel of the screen
+	 * @return
+	 */
+	public double getPixelScale() {
+		return pixelScale;
+	}
+
+	/**
+	 * change the resolution of the image, e.g. when the window is resized or moved to a screen of another scale.
+	 * The history is left untouched: every state keeps its centre and the distance between two logical pixels of the screen,
+	 * so a larger window shows more of the plane around the centre and a HiDPI screen shows the same region with more pixels.
+	 * The render in flight is cancelled and the next render reallocates the buffers on the render thread, so this method never waits.
+	 * The image starts from the last preview when it shows the current state at the new size, so that nothing blank is drawn before it.
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 * @param pixelScale the pixels of the image per logical pixel of the screen
+	 */
+	public void setSize(int width, int height, double pixelScale) {
+		if (width < 1 || height < 1 || !(pixelScale > 0)) {
+			throw new IllegalArgumentException("invalid size " + width + "x" + height + " at scale " + pixelScale);
+		}
+		if (width == this.width && height == this.height && pixelScale == this.pixelScale) {
+			return;
+		}
+		cancelRender();
+		this.width = width;
+		this.height = height;
+		this.pixelScale = pixelScale;
+	}
+
+	/**
+	 * the current state as it is rendered at the size of the image.
+	 * @return
+	 */
+	public MandelbrotParam getView() {
+		return view(getState(), width, height, pixelScale);
+	}
+
+	/**
+	 * the current state as it would be rendered after setSize.
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 * @param pixelScale the pixels of the image per logical pixel of the screen
+	 * @return
+	 */
+	public MandelbrotParam getResizedState(int width, int height, double pixelScale) {
+		return view(getState(), width, height, pixelScale);
+	}
+
+	/**
+	 * a state of the history as it is rendered in an image of the given size: its spans are those of the logical size the history
+	 * is given for, scaled to the logical size of the image. The state itself is returned at that size, so its cached counts are found again.
+	 */
+	private MandelbrotParam view(MandelbrotParam mp, int width, int height, double pixelScale) {
+		return resized(mp, (width / pixelScale) / baseWidth, (height / pixelScale) / baseHeight);
+	}
+
+	/**
+	 * the state of the history a view of the image at its current size shows.
+	 * A view with the same spans as that of the state it was made from, e.g. a pan, keeps the spans of the state exactly,
+	 * so that it is rendered with the same spans again and only the strips that came into view are computed.
+	 * @param view the new view, at the size of the image.
+	 * @param from the state of the history it was made from.
+	 */
+	private MandelbrotParam toHistory(MandelbrotParam view, MandelbrotParam from) {
+		MandelbrotParam fromView = view(from, width, height, pixelScale);
+		double realFactor = baseWidth / (width / pixelScale);
+		double imagFactor = baseHeight / (height / pixelScale);
+		return new MandelbrotParam(view.getCentreReal(), view.getCentreImag(),
+				view.getRealSpan() == fromView.getRealSpan() ? from.getRealSpan() : view.getRealSpan() * realFactor,
+				view.getImagSpan() == fromView.getImagSpan() ? from.getImagSpan() : view.getImagSpan() * imagFactor,
+				view.getColorScheme(), view.getMaxIteration());
+	}
+
+	private static MandelbrotParam resized(MandelbrotParam mp, double realFactor, double imagFactor) {
+		if (realFactor == 1 && imagFactor == 1) {
+			return mp;
+		}
+		return new MandelbrotParam(mp.getCentreReal(), mp.getCentreImag(), mp.getRealSpan() * realFactor, mp.getImagSpan() * imagFactor,
+				mp.getColorScheme(), mp.getMaxIteration());
+	}
+
+	/**
+	 * the current state panned by a displacement in pixels, as setNextState(dx, dy) would render it.
+	 * @param dx the number of columns to move right, along the real axis.
+	 * @param dy the number of rows to move down, along the imaginary axis.
+	 * @return
+	 */
+	public MandelbrotParam getPannedState(int dx, int dy) {
+		return view(panned(dx, dy), width, height, pixelScale);
+	}
+
+	/**
+	 * the state of the history setNextState(dx, dy) adds.
+	 */
+	private MandelbrotParam panned(int dx, int dy) {
+		return toHistory(getView().zoomTo(dx, dy, width + dx, height + dy, width, height), getState());
+	}
+
+	/**
+	 * make the buffers and the image the given size, if they are not. Runs on the render thread, before a render reads them.
+	 * The image starts from the last preview when it shows the state at that size.
+	 */
+	private void resizeBuffers(MandelbrotParam mp, int width, int height) {
+		if (width == bufferWidth && height == bufferHeight) {
+			return;
+		}
+		bufferWidth = width;
+		bufferHeight = height;
+		iterations = new int[width * height];
+		previousIterations = new int[width * height];
+		moduli = new double[width * height];
+		orbits = new OrbitBuffer(width, height);
+		iterationsState = null;
+		previousState = null;
+		moduliState = null;
+		renderedState = null;
+		BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Preview last = preview;
+		if (last != null && last.state.equals(mp) && last.fullWidth == width && last.fullHeight == height) {
+			Graphics2D g = resizedImage.createGraphics();
+			g.drawImage(last.image, 0, 0, width, height, null);
+			g.dispose();
+		}
+		synchronized (imageLock) {
+			image = resizedImage;
+		}
+	}
+
+	/**
+	 * update the image with current parameters.
+	 * The image is cached: nothing is recomputed if the current state and the resolution are the same as for the last render,
+	 * so repainting the canvas (e.g. while dragging the zoom square) only costs drawing the image.
+	 * The render runs on the render thread, after any background render in flight has been cancelled, and this method waits for it.
+	 * The buffers take the size of the image there first.
 	 */
 	public void updateImage() {
-		MandelbrotParam mp = data.get(stateIndex);
-		MandelbrotCalculator mandelCalc = new MandelbrotCalculator();
-		int[][] mandelbrotData = mandelCalc.calcMandelbrotSet(width, height, 
-				mp.getMinReal(), 
-				mp.getMaxReal(), 
-				mp.getMinImag(), 
-				mp.getMaxImag(),
-				mp.getMaxIteration(), 
-				MandelbrotCalculator.DEFAULT_RADIUS_SQUARED);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int val = mandelbrotData[y][x];
-				int color = calculateColor(val, mp.getColorScheme());
-				image.setRGB(x, y, color);
+		final MandelbrotParam mp = getView();
+		final int width = this.width;
+		final int height = this.height;
+		if (!isImageStale()) {
+			return;
+		}
+		cancelRender();
+		final long generation = renderGeneration.get();
+		Future<?> render = RENDER_EXECUTOR.submit(new Runnable() {
+			public void run() {
+				resizeBuffers(mp, width, height);
+				RenderMetrics.Render metrics = RenderMetrics.global().startRender(mp, width, height);
+				if (!loadIterations(mp)) {
+					long start = System.nanoTime();
+					calculate(mp, 1, null, null);
+					metrics.addPhase(RenderMetrics.Phase.COMPUTE, System.nanoTime() - start);
+					storeIterations(mp);
+				}
+				calculateModuli(mp, null, metrics);
+				synchronized (imageLock) {
+					colorImage(mp, metrics);
+					publish(mp, generation);
+				}
+				metrics.finish(true);
+			}
+		});
+		try {
+			render.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("render failed", e.getCause());
+		}
+	}
+
+	/**
+	 * render the image for the current state in the background, unless it is already up to date or being rendered.
+	 * The image is published progressively: a coarse preview first, then the full resolution, tile by tile.
+	 * Changing the state cancels the render in flight, so a new request never waits for an outdated one.
+	 * @param listener notified from the render threads whenever part of the image changed.
+	 */
+	public void requestImage(final RenderListener listener) {
+		final MandelbrotParam mp = getView();
+		final int width = this.width;
+		final int height = this.height;
+		if (!isImageStale() || mp.equals(pendingState)) {
+			return;
+		}
+		cancelRender();
+		pendingState = mp;
+		final long generation = renderGeneration.get();
+		RENDER_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				if (renderGeneration.get() != generation) {
+					return;	//superseded before it started, e.g. by a resize
+				}
+				resizeBuffers(mp, width, height);
+				RenderMetrics.Render metrics = RenderMetrics.global().startRender(mp, width, height);
+				boolean complete = false;
+				try {
+					complete = renderProgressively(mp, generation, listener, metrics);
+				} finally {
+					metrics.finish(complete);
+				}
 			}
+		});
+	}
+
+	/**
+	 * render a reduced resolution preview of a state in the background, e.g. while the user drags, zooms with the wheel or resizes,
+	 * unless it is already the last preview or being rendered. The render in flight is cancelled, so the previews follow the input
+	 * and the full render is requested once it settles; it then starts from the preview instead of its coarse pass.
+	 * The preview is 1/4 of the resolution of the image, or 1/8 after a preview took longer than a frame at 30 frames per second,
+	 * until one is fast enough again.
+	 * @param mp the state, which need not be in the history, e.g. the view while a pan is dragged.
+	 * @param width the width of the full resolution image of the state.
+	 * @param height the height of the full resolution image of the state.
+	 * @param listener notified from the render thread once the preview is ready.
+	 */
+	public void requestPreview(final MandelbrotParam mp, final int width, final int height, final RenderListener listener) {
+		Preview last = preview;
+		if (mp.equals(pendingPreview) && width == pendingPreviewWidth && height == pendingPreviewHeight) {
+			return;
+		}
+		if (pendingPreview == null && last != null && mp.equals(last.state) && width == last.fullWidth && height == last.fullHeight) {
+			return;
+		}
+		cancelRender();
+		pendingPreview = mp;
+		pendingPreviewWidth = width;
+		pendingPreviewHeight = height;
+		final long generation = renderGeneration.get();
+		RENDER_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				renderPreview(mp, width, height, generation, listener);
+			}
+		});
+	}
+
+	/**
+	 * getter of the image of the last preview.
+	 * @return the image, of a reduced resolution, or null if no preview was rendered yet.
+	 */
+	public BufferedImage getPreviewImage() {
+		Preview last = preview;
+		return last == null ? null : last.image;
+	}
+
+	private static int previewSize(int size, int divisor) {
+		return Math.max(1, size / divisor);
+	}
+
+	/**
+	 * the body of a background preview.
+	 */
+	private void renderPreview(MandelbrotParam mp, int fullWidth, int fullHeight, final long generation, RenderListener listener) {
+		BooleanSupplier cancelled = new BooleanSupplier() {
+			public boolean getAsBoolean() {
+				return renderGeneration.get() != generation;
+			}
+		};
+		int divisor = PREVIEW_DIVISORS[previewLevel];
+		int w = previewSize(fullWidth, divisor);
+		int h = previewSize(fullHeight, divisor);
+		RenderMetrics.Render metrics = RenderMetrics.global().startRender(mp, w, h);
+		boolean complete = false;
+		try {
+			long start = System.nanoTime();
+			int[] counts = new int[w * h];
+			renderer.calculate(counts, w, h, mp, 1, null, cancelled);
+			metrics.addPhase(RenderMetrics.Phase.COMPUTE, System.nanoTime() - start);
+			if (cancelled.getAsBoolean()) {
+				return;
+			}
+			long colourStart = System.nanoTime();
+			BufferedImage previewImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			int[] pixels = ((DataBufferInt) previewImage.getRaster().getDataBuffer()).getData();
+			if (smoothColouring) {
+				SmoothColouring.colour(counts, null, pixels, w, h, mp);
+			} else {
+				ViewRenderer.colour(counts, pixels, w, h, mp);
+			}
+			metrics.addPhase(RenderMetrics.Phase.COLOUR, System.nanoTime() - colourStart);
+			long took = System.nanoTime() - start;
+			if (took > PREVIEW_BUDGET_NANOS && previewLevel < PREVIEW_DIVISORS.length - 1) {
+				previewLevel++;
+			} else if (previewLevel > 0 && took * (long) PREVIEW_DIVISORS[previewLevel] * PREVIEW_DIVISORS[previewLevel]
+					< PREVIEW_BUDGET_NANOS / 2 * (long) PREVIEW_DIVISORS[previewLevel - 1] * PREVIEW_DIVISORS[previewLevel - 1]) {
+				previewLevel--;	//the finer preview, with more pixels by the square of the ratio of the divisors, fits in half the budget
+			}
+			synchronized (imageLock) {
+				if (cancelled.getAsBoolean()) {
+					return;
+				}
+				preview = new Preview(mp, counts, w, h, fullWidth, fullHeight, previewImage);
+			}
+			complete = true;
+			listener.imageUpdated(true);
+		} finally {
+			metrics.finish(complete);
 		}
 	}
+
+	/**
+	 * abandon the background render in flight, if any.
+	 */
+	public void cancelRender() {
+		renderGeneration.incrementAndGet();
+		pendingState = null;
+		pendingPreview = null;
+	}
+
+	/**
+	 * the body of a background render. A state whose counts are already in the iteration buffer, because only the colour scheme
+	 * changed, or in the iteration cache is only coloured. Otherwise every pass colours its tiles
+	 * into the image as soon as they are computed, as long as no newer render has been requested, and the finished buffer is cached.
+	 * When the last complete view overlaps the new one, its counts are reprojected and shown at once instead of the coarse pass;
+	 * a pan by whole pixels then only computes the newly exposed strips, and any other change of view refines every pixel.
+	 * The reused pixels of a pan keep the coordinates of the previous view, which differ from the new ones in the last bits,
+	 * so its buffer is not cached: undo and redo render the panned state exactly.
+	 * Otherwise a preview of the state rendered while the user interacted is scaled up and shown at once instead of the coarse pass.
+	 * The iteration buffers are reused, so a render allocates no pixel arrays apart from the cached copy.
+	 * With smooth colouring the tiles of a pass are coloured with the whole counts equalised over the preview it refines,
+	 * and the complete image is coloured again once the moduli of its orbits are known.
+	 * The time of every phase is added to the metrics of the render.
+	 * @return true if the render completed, false if it was cancelled.
+	 */
+	private boolean renderProgressively(final MandelbrotParam mp, final long generation, final RenderListener listener,
+			final RenderMetrics.Render metrics) {
+		final BooleanSupplier cancelled = new BooleanSupplier() {
+			public boolean getAsBoolean() {
+				return renderGeneration.get() != generation;
+			}
+		};
+		final boolean smooth = smoothColouring;
+		//the palette the tiles of the current pass are coloured with
+		final int[][] palette = {Palette.lookup(mp.getColorScheme(), mp.getMaxIteration())};
+		MandelbrotSink sink = new MandelbrotSink() {
+			public void tileComputed(int x, int y, int w, int h, int[] values, int offset, int scanline) {
+				long start = System.nanoTime();
+				synchronized (imageLock) {
+					if (cancelled.getAsBoolean()) {
+						return;
+					}
+					colorRegion(values, offset, scanline, x, y, w, h, palette[0]);
+				}
+				metrics.addPhase(RenderMetrics.Phase.COLOUR, System.nanoTime() - start);
+				listener.imageUpdated(false);
+			}
+		};
+		MandelbrotParam previous = iterationsState;
+		if (loadIterations(mp)) {
+			if (!calculateModuli(mp, cancelled, metrics)) {
+				return false;
+			}
+			synchronized (imageLock) {
+				if (cancelled.getAsBoolean()) {
+					return false;
+				}
+				colorImage(mp, metrics);
+				publish(mp, generation);
+			}
+			listener.imageUpdated(true);
+			return true;
+		}
+		if (previous != null) {
+			//the buffer still holds the previous view, keep it in case this render is cancelled before it completes
+			System.arraycopy(iterations, 0, previousIterations, 0, iterations.length);
+			previousState = previous;
+		}
+		int[] steps = PROGRESSIVE_STEPS;
+		Reprojection overlap = previousState == null ? null : Reprojection.between(previousState, mp, bufferWidth, bufferHeight);
+		boolean pan = overlap != null && overlap.isAligned() && previousState.getMaxIteration() == mp.getMaxIteration()
+				&& Precision.select(mp, bufferWidth, bufferHeight) == Precision.DOUBLE;
+		Preview last = preview;
+		if (!pan && last != null && last.state.hasSameIterations(mp)
+				&& last.fullWidth == bufferWidth && last.fullHeight == bufferHeight) {
+			//the preview rendered while the user interacted replaces the coarse pass, and any reprojection of a distant view
+			long start = System.nanoTime();
+			last.upscale(iterations, bufferWidth, bufferHeight);
+			metrics.addPhase(RenderMetrics.Phase.REPROJECT, System.nanoTime() - start);
+			synchronized (imageLock) {
+				if (cancelled.getAsBoolean()) {
+					return false;
+				}
+				colorImage(mp, metrics);
+			}
+			listener.imageUpdated(false);
+			if (smooth) {
+				equalisePalette(mp, palette, metrics);
+			}
+			steps = REFINEMENT_STEPS;
+		} else if (overlap != null) {
+			long reprojectStart = System.nanoTime();
+			overlap.apply(previousIterations, iterations, mp.getMaxIteration());
+			metrics.addPhase(RenderMetrics.Phase.REPROJECT, System.nanoTime() - reprojectStart);
+			synchronized (imageLock) {
+				if (cancelled.getAsBoolean()) {
+					return false;
+				}
+				colorImage(mp, metrics);
+			}
+			listener.imageUpdated(false);
+			if (smooth) {
+				equalisePalette(mp, palette, metrics);
+			}
+			steps = REFINEMENT_STEPS;
+			if (pan) {
+				long start = System.nanoTime();
+				calculateExposed(mp, overlap, sink, cancelled);
+				metrics.addPhase(RenderMetrics.Phase.COMPUTE, System.nanoTime() - start);
+				steps = new int[0];
+			}
+		}
+		boolean previewed = false;	//whether a pass of this loop left counts to equalise the palette of the next one over
+		for (int step : steps) {
+			if (cancelled.getAsBoolean()) {
+				return false;
+			}
+			if (step > 1 && orbits.holds(mp)) {
+				continue;	//only the max iteration number changed, the full render continues the stored orbits at once
+			}
+			if (smooth && previewed) {
+				equalisePalette(mp, palette, metrics);
+			}
+			long start = System.nanoTime();
+			calculate(mp, step, sink, cancelled);
+			metrics.addPhase(RenderMetrics.Phase.COMPUTE, System.nanoTime() - start);
+			previewed = true;
+		}
+		if (cancelled.getAsBoolean()) {
+			return false;
+		}
+		if (pan) {
+			//the reused pixels keep the coordinates of the previous view, so the counts are shown but never cached as exact
+			iterationsState = mp;
+			iterationsReprojected = true;
+		} else {
+			storeIterations(mp);
+		}
+		if (smooth && !calculateModuli(mp, cancelled, metrics)) {
+			return false;
+		}
+		synchronized (imageLock) {
+			if (smooth) {
+				if (cancelled.getAsBoolean()) {
+					return false;
+				}
+				colorImage(mp, metrics);
+			}
+			if (!publish(mp, generation)) {
+				return false;
+			}
+		}
+		listener.imageUpdated(true);
+		return true;
+	}
+
+	/**
+	 * make the iteration buffer hold the counts of a state without computing them, if possible.
+	 * When only the colour scheme changed since the last complete render the buffer already holds them, so the state is a pure
+	 * recolouring; otherwise they may be in the iteration cache, or in the session file last loaded. Runs on the render thread.
+	 * @return true if the buffer holds the counts of the state.
+	 */
+	private boolean loadIterations(MandelbrotParam mp) {
+		if (mp.hasSameIterations(iterationsState)) {
+			return true;
+		}
+		iterationsState = null;
+		if (iterationCache.get(mp, bufferWidth, bufferHeight, iterations)) {
+			iterationsState = mp;
+			iterationsReprojected = false;
+			return true;
+		}
+		IterationTiles saved = savedIterations;
+		if (saved != null && saved.holds(mp, bufferWidth, bufferHeight)) {
+			try {
+				saved.copyTo(iterations);
+				storeIterations(mp);
+				return true;
+			} catch (IOException e) {
+				savedIterations = null;	//the view is computed again instead
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * make the moduli hold the final moduli of the orbits of the iteration buffer, if smooth colouring is on and they do not already.
+	 * Runs on the render thread, after the buffer holds the complete counts of the state.
+	 * @return false if the render was cancelled.
+	 */
+	private boolean calculateModuli(MandelbrotParam mp, BooleanSupplier cancelled, RenderMetrics.Render metrics) {
+		if (!smoothColouring || mp.hasSameIterations(moduliState)) {
+			return true;
+		}
+		moduliState = null;
+		long start = System.nanoTime();
+		renderer.calculateModuli(iterations, moduli, bufferWidth, bufferHeight, mp, cancelled);
+		metrics.addPhase(RenderMetrics.Phase.COMPUTE, System.nanoTime() - start);
+		if (cancelled != null && cancelled.getAsBoolean()) {
+			return false;
+		}
+		moduliState = mp;
+		return true;
+	}
+
+	/**
+	 * replace the palette the tiles of the next pass are coloured with by the whole counts of the iteration buffer equalised.
+	 */
+	private void equalisePalette(MandelbrotParam mp, int[][] palette, RenderMetrics.Render metrics) {
+		long start = System.nanoTime();
+		palette[0] = SmoothColouring.equalisedPalette(iterations, bufferWidth, bufferHeight, mp);
+		metrics.addPhase(RenderMetrics.Phase.COLOUR, System.nanoTime() - start);
+	}
+
+	/**
+	 * record that a complete render of a state is in the iteration buffer, and cache it. Runs on the render thread.
+	 */
+	private void storeIterations(MandelbrotParam mp) {
+		iterationsState = mp;
+		iterationsReprojected = false;
+		iterationCache.put(mp, bufferWidth, bufferHeight, iterations);
+	}
+
+	/**
+	 * compute the iteration buffer for a state, with the engine its depth requires:
+	 * the double precision tile engine, the double-double engine once the pixel spacing is below double precision,
+	 * or the perturbation engine once it is below double-double precision.
+	 * Full resolution double precision renders keep the unresolved orbits, so a later change of the max iteration number
+	 * only continues them, or needs no iteration at all when it is lowered. With smooth colouring full resolution renders
+	 * compute the final moduli of the orbits instead.
+	 */
+	private void calculate(MandelbrotParam mp, int step, MandelbrotSink sink, BooleanSupplier cancelled) {
+		if (step == 1 && smoothColouring) {
+			moduliState = null;
+			renderer.calculateSmooth(iterations, moduli, bufferWidth, bufferHeight, mp, sink, cancelled);
+			if (cancelled == null || !cancelled.getAsBoolean()) {
+				moduliState = mp;
+			}
+			return;
+		}
+		if (step == 1 && Precision.select(mp, bufferWidth, bufferHeight) == Precision.DOUBLE) {
+			orbits.render(mandelCalc, mp, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED, iterations, sink, cancelled);
+			return;
+		}
+		renderer.calculate(iterations, bufferWidth, bufferHeight, mp, step, sink, cancelled);
+	}
+
+	/**
+	 * compute the pixels of a panned view that lie outside the previous one: the rows above and below it,
+	 * then the columns on either side of it.
+	 */
+	private void calculateExposed(MandelbrotParam mp, Reprojection overlap, MandelbrotSink sink, BooleanSupplier cancelled) {
+		int[][] strips = {
+				{0, 0, bufferWidth, overlap.getTop()},
+				{0, overlap.getBottom(), bufferWidth, bufferHeight - overlap.getBottom()},
+				{0, overlap.getTop(), overlap.getLeft(), overlap.getBottom() - overlap.getTop()},
+				{overlap.getRight(), overlap.getTop(), bufferWidth - overlap.getRight(), overlap.getBottom() - overlap.getTop()}
+		};
+		for (int[] strip : strips) {
+			if (strip[2] > 0 && strip[3] > 0) {
+				mandelCalc.calcMandelbrotRegion(iterations, bufferWidth, bufferHeight,
+						mp.getMinReal(),
+						mp.getMaxReal(),
+						mp.getMinImag(),
+						mp.getMaxImag(),
+						mp.getMaxIteration(),
+						MandelbrotCalculator.DEFAULT_RADIUS_SQUARED,
+						strip[0], strip[1], strip[2], strip[3],
+						sink,
+						cancelled);
+			}
+		}
+	}
+
+	/**
+	 * record that the image now shows the given state, unless the render was cancelled meanwhile.
+	 * The last preview is dropped, so the next interaction never starts by drawing an outdated one.
+	 * @return true if the render was still current.
+	 */
+	private boolean publish(MandelbrotParam mp, long generation) {
+		if (renderGeneration.get() != generation) {
+			return false;
+		}
+		preview = null;
+		renderedState = mp;
+		renderedWidth = bufferWidth;
+		renderedHeight = bufferHeight;
+		return true;
+	}
+
+	/**
+	 * colour the whole iteration buffer into the image, with the rows shared out between the fork-join workers.
+	 * With smooth colouring the moduli are used if they belong to the counts of the state, e.g. not for a reprojected preview.
+	 */
+	private void colorImage(MandelbrotParam mp, RenderMetrics.Render metrics) {
+		long start = System.nanoTime();
+		if (smoothColouring) {
+			SmoothColouring.colour(iterations, mp.hasSameIterations(moduliState) ? moduli : null, getPixels(), bufferWidth, bufferHeight, mp);
+		} else {
+			ViewRenderer.colour(iterations, getPixels(), bufferWidth, bufferHeight, mp);
+		}
+		metrics.addPhase(RenderMetrics.Phase.COLOUR, System.nanoTime() - start);
+	}
+
+	/**
+	 * colour a rectangle of iteration counts into the image, row by row.
+	 */
+	private void colorRegion(int[] values, int offset, int scanline, int x0, int y0, int w, int h, int[] palette) {
+		int[] pixels = getPixels();
+		for (int j = 0; j < h; j++) {
+			colorRow(values, offset + j * scanline, pixels, (y0 + j) * bufferWidth + x0, w, palette);
+		}
+	}
+
+	/**
+	 * map a run of iteration counts through the palette straight into the raster of the image.
+	 */
+	private static void colorRow(int[] values, int from, int[] pixels, int to, int length, int[] palette) {
+		for (int i = 0; i < length; i++) {
+			pixels[to + i] = palette[values[from + i]];
+		}
+	}
+
+	/**
+	 * the pixel array backing the image, one packed RGB value per pixel in row-major order.
+	 */
+	private int[] getPixels() {
+		return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * check whether the image needs to be rendered again for the current state.
+	 * @return true if the state or the resolution changed since the last render.
+	 */
+	public boolean isImageStale() {
+		return renderedState == null
+				|| renderedWidth != width
+				|| renderedHeight != height
+				|| !renderedState.equals(getView());
+	}
+
+	/**
+	 * drop the cached image so that the next update renders it again.
+	 */
+	public void invalidateImage() {
+		renderedState = null;
+	}
 	
 	/**
 	 * calculator of the colour with given colour scheme.
@@ -123,7 +910,18 @@ public class ModelCalculator {
 	 * @return
 	 */
 	public int calculateColor(int val, String colorScheme) {
-		int maxIter = data.get(stateIndex).getMaxIteration();
+		return calculateColor(val, colorScheme, data.get(stateIndex).getMaxIteration());
+	}
+
+	/**
+	 * calculator of the colour with given colour scheme and max iteration number,
+	 * independent of the current state so that it can be used by background renders.
+	 * @param val
+	 * @param colorScheme
+	 * @param maxIter
+	 * @return
+	 */
+	public static int calculateColor(int val, String colorScheme, int maxIter) {
 		if(val == maxIter) return 0x00000000;
 		switch (colorScheme) {
 		case "BnW":
@@ -159,40 +957,41 @@ public class ModelCalculator {
 	}
 	
 	/**
-	 * There are three version of this method to add a new state to the data list that takes in different parameters.
+	 * There are five version of this method to add a new state to the data list that takes in different parameters.
 	 * The first one takes in a square from the former Mandelbrot Set image.
 	 * The new Mandelbrot Set data is generated with the ranges for real and imaginary part from the square.
+	 * The new view is computed on the exact centre of the former one, so zooming keeps working past double precision,
+	 * where the renders switch to the double-double and then the perturbation engine.
+	 * The square is given in pixels of the image, whatever its resolution. It fills the shorter side of the new view,
+	 * so the pixels stay square in an image that is not.
 	 * Other parameters are inherited from the former state.
 	 * @param s
 	 */
 	public void setNextState(Square s) {
+		cancelRender();
+		MandelbrotParam last = getState();
+		//the square's y axis runs along the real axis and its x axis along the imaginary axis
+		double scale = s.getSide() / Math.min(width, height);
+		double centreX = (s.getyMin() + s.getyMax()) / 2;
+		double centreY = (s.getxMin() + s.getxMax()) / 2;
+		MandelbrotParam next = toHistory(getView().zoomTo(centreX - width * scale / 2, centreY - height * scale / 2,
+				centreX + width * scale / 2, centreY + height * scale / 2, width, height), last);
 		stateIndex++;
-		MandelbrotParam last = data.get(stateIndex - 1);
-		double minr = s.getyMin() / 800.0 * (last.getMaxReal() - last.getMinReal()) + last.getMinReal();
-		double mini = s.getxMin() / 800.0 * (last.getMaxImag() - last.getMinImag()) + last.getMinImag();
-		double maxr = s.getyMax() / 800.0 * (last.getMaxReal() - last.getMinReal()) + last.getMinReal();
-		double maxi = s.getxMax() / 800.0 * (last.getMaxImag() - last.getMinImag()) + last.getMinImag();
-		data.add(new MandelbrotParam(minr, 
-				maxr, 
-				mini, 
-				maxi, 
-				last.getColorScheme(), 
-				last.getMaxIteration()));
+		data.add(next);
 	}
 	
 	/**
 	 * The second state does not take in arguments.
 	 * This is used to change the colour setting for the image.
+	 * The view is unchanged, so the next render only maps the iteration counts it already has through the new palette.
 	 * The colour setting sequence is built in the parameter class.
 	 * Other parameters are inherited from the former state.
 	 */
 	public void setNextState() {
+		cancelRender();
 		stateIndex++;
 		MandelbrotParam last = data.get(stateIndex - 1);
-    	data.add(new MandelbrotParam(last.getMinReal(), 
-    			last.getMaxReal(), 
-    			last.getMinImag(), 
-    			last.getMaxImag(), 
+    	data.add(new MandelbrotParam(last, 
     			last.getNextColor(last.getColorScheme()), 
     			last.getMaxIteration()));
 	}
@@ -200,48 +999,155 @@ public class ModelCalculator {
 	/**
 	 * The third state takes in new max iteration number.
 	 * This is used to update the max iteration number.
+	 * The view is unchanged, so the next render continues the orbits that had not escaped instead of starting over.
 	 * Other parameters are inherited from the former state.
-	 * @param maxIter
+	 * @param maxIter from 1 to MAX_ITERATIONS.
+	 * @throws IllegalArgumentException if maxIter is out of range, in which case the history is unchanged.
 	 */
 	public void setNextState(int maxIter) {
+		if (maxIter < 1 || maxIter > MAX_ITERATIONS) {
+			throw new IllegalArgumentException("max iteration number must be from 1 to " + MAX_ITERATIONS + ": " + maxIter);
+		}
+		cancelRender();
 		stateIndex++;
 		MandelbrotParam last = data.get(stateIndex - 1);
-    	data.add(new MandelbrotParam(last.getMinReal(), 
-    			last.getMaxReal(), 
-    			last.getMinImag(), 
-    			last.getMaxImag(), 
+    	data.add(new MandelbrotParam(last, 
     			last.getColorScheme(), 
     			maxIter));
 	}
 	
+	/**
+	 * The fourth state takes in a displacement in pixels.
+	 * This is used to pan the view: the new view is the same size and its top left corner is at pixel (dx, dy) of the former one,
+	 * so the next render reuses the pixels the two views share and only computes the strips that came into view.
+	 * Other parameters are inherited from the former state.
+	 * @param dx the number of columns to move right, along the real axis.
+	 * @param dy the number of rows to move down, along the imaginary axis.
+	 */
+	public void setNextState(int dx, int dy) {
+		cancelRender();
+		MandelbrotParam next = panned(dx, dy);
+		stateIndex++;
+		data.add(next);
+	}
+
+	/**
+	 * The fifth state takes in a point and a zoom factor.
+	 * This is used to zoom with the mouse wheel: the point stays where it is on the screen while the view around it is scaled,
+	 * in both directions alike, so it works for an image of any shape.
+	 * Other parameters are inherited from the former state.
+	 * @param x the column of the point in pixels of the image.
+	 * @param y the row of the point in pixels of the image.
+	 * @param factor the size of the new view relative to the former one, below 1 to zoom in.
+	 */
+	public void setNextState(double x, double y, double factor) {
+		cancelRender();
+		MandelbrotParam next = toHistory(getView().zoomTo(x - x * factor, y - y * factor,
+				x + (width - x) * factor, y + (height - y) * factor, width, height), getState());
+		stateIndex++;
+		data.add(next);
+	}
+
 	/**
 	 * This method is used to load Mandelbrot set data from a saved file.
+	 * A session file replaces the whole history and restores its current state, whose saved iteration counts, if any,
+	 * are used instead of computing it when it is shown at the same resolution, while a single state serialized by earlier versions is added to the history as a new state.
+	 * Both are shown as they were saved at the current size of the image.
 	 * @param f
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
 	public void loadParam(File f) throws IOException, ClassNotFoundException {
-			FileInputStream fis = new FileInputStream(f);
-			ois = new ObjectInputStream(fis);
-			MandelbrotParam mp = (MandelbrotParam) ois.readObject();
-			data.add(mp);
-			stateIndex++;
+		if (SessionFile.matches(f)) {
+			SessionFile session = SessionFile.read(f.toPath());
+			cancelRender();
+			data.clear();
+			data.addAll(session.getHistory());
+			stateIndex = session.getStateIndex();
+			baseWidth = width / pixelScale;
+			baseHeight = height / pixelScale;
+			savedIterations = session.getIterations();
+			return;
+		}
+		MandelbrotParam mp;
+		try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
+			mp = (MandelbrotParam) ois.readObject();
+		} catch (ClassCastException e) {
+			throw new IOException("not a Mandelbrot state: " + f, e);
+		}
+		cancelRender();
+		removeTail();
+		data.add(toHistory(mp, mp));
+		stateIndex++;
 	}
 	
 	/**
-	 * This method is used to save the current Mandelbrot set parameters.
+	 * This method is used to save the session, i.e. the whole history and the current state.
 	 * 		File name format:
-	 * 				"MSData_yyyy-MM-dd_HH:mm:ss.ser"
+	 * 				"MSData_yyyy-MM-dd_HH:mm:ss.mss"
 	 * @throws IOException
 	 */
 	public void saveParam() throws IOException {
+		saveParam(false);
+	}
+
+	/**
+	 * This method is used to save the session, optionally with the iteration counts of the current state,
+	 * so that reopening it does not compute the view again. The states are saved as they are shown at the current size of the image. The counts are taken from the iteration buffer or the iteration cache
+	 * when they are there, and computed otherwise. The counts are gathered on the render thread, after the renders queued before,
+	 * so this method waits for them and should not be called on the event dispatch thread when withIterations is true.
+	 * @param withIterations
+	 * @throws IOException
+	 */
+	public void saveParam(boolean withIterations) throws IOException {
 		String fileName = "MSData_";
-		String exten = ".ser";
+		String exten = SessionFile.EXTENSION;
 		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss");
     	Date date = new Date();
-		FileOutputStream fos = new FileOutputStream(fileName + dateFormat.format(date) + exten);
-		oos = new ObjectOutputStream(fos);
-		oos.writeObject(data.get(stateIndex));
+		final File file = new File(fileName + dateFormat.format(date) + exten);
+		final int width = this.width;
+		final int height = this.height;
+		ArrayList<MandelbrotParam> views = new ArrayList<MandelbrotParam>();
+		for (MandelbrotParam state : data) {
+			views.add(view(state, width, height, pixelScale));
+		}
+		final SessionFile session = new SessionFile(views, stateIndex);
+		if (!withIterations) {
+			session.write(file.toPath());
+			return;
+		}
+		final MandelbrotParam mp = views.get(stateIndex);
+		Future<?> save = RENDER_EXECUTOR.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				int[] counts;
+				if (width == bufferWidth && height == bufferHeight && mp.hasSameIterations(iterationsState) && !iterationsReprojected) {
+					counts = iterations;	//the last complete render, nothing else writes the buffer while this task runs
+				} else {
+					counts = new int[width * height];
+					if (!iterationCache.get(mp, width, height, counts)) {
+						IterationTiles saved = savedIterations;
+						if (saved != null && saved.holds(mp, width, height)) {
+							saved.copyTo(counts);
+						} else {
+							renderer.calculate(counts, width, height, mp, 1, null, null);
+						}
+					}
+				}
+				session.write(file.toPath(), counts, width, height);
+				return null;
+			}
+		});
+		try {
+			save.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while saving " + file);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("saving failed", e.getCause());
+		}
 	}
 	
 	/**
@@ -256,7 +1162,15 @@ public class ModelCalculator {
 		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss");
     	Date date = new Date();
     	String time = dateFormat.format(date);
-		File savedImage = new File(fileName + time + exten);
+		saveImage(new File(fileName + time + exten));
+	}
+
+	/**
+	 * This method is used to save the current image to a given PNG file.
+	 * @param savedImage
+	 * @throws IOException
+	 */
+	public void saveImage(File savedImage) throws IOException {
 		ImageIO.write(image, "PNG", savedImage);
 	}
 }
@@ -0,0 +1,200 @@
+package Model;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * The OrbitBuffer class keeps the iteration counts of the pixels of one view together with the orbits of the points that have not
+ * escaped yet, so that the view can be rendered again with another max iteration number without starting every pixel over from Z = 0.
+ * Raising the max iteration number only continues the unresolved orbits from where they stopped. Lowering it is answered from the
+ * stored counts, since the value of a pixel is the smaller of its escape count and the max iteration number.
+ * Points proved to stay bounded, by the cardioid and bulb test or by an exactly repeating orbit, are never iterated again.
+ * Pixels the tile engine filled without computing them as inside the set are not proved bounded, so their orbits are kept from Z = 0
+ * and continued from there.
+ * The arithmetic is that of calcMandel, so the counts are identical to a render from scratch.
+ * Its pixels are computed by the loop of calcMandelOptimised, which keeps the orbit, whatever kernel the tile engine is set to.
+ * The buffer takes 20 bytes per pixel and is only used for double precision views. It is driven by one render at a time.
+ * @author 170024030
+ *
+ */
+final class OrbitBuffer {
+	//the count of a pixel known to stay bounded
+	private static final int INTERIOR = Integer.MAX_VALUE;
+	//the count of a pixel the tile engine filled without computing it, e.g. inside a Mariani-Silver rectangle
+	private static final int UNSET = -1;
+	private final int width;
+	private final int height;
+	private final int[] counts;	//the escape count, INTERIOR, or the number of iterations an unresolved pixel is known not to escape in
+	private final double[] zr;	//the orbit of an unresolved pixel, NaN once the pixel is resolved
+	private final double[] zi;
+	private int[] unresolved = new int[0];	//the indices of the unresolved pixels
+	private MandelbrotParam view;	//the view the buffer holds, null if none
+	private double radiusSquared;
+	private double minReal;
+	private double minImaginary;
+	private double realStep;
+	private double imaginaryStep;
+
+	/**
+	 * Creates an empty buffer for views of the given resolution.
+	 * @param width
+	 * @param height
+	 */
+	OrbitBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.counts = new int[width * height];
+		this.zr = new double[width * height];
+		this.zi = new double[width * height];
+	}
+
+	/**
+	 * check whether the buffer holds the orbits of a view, so that rendering it only continues or reuses them.
+	 * @param mp
+	 * @return true if the buffer holds the same view, whatever its max iteration number.
+	 */
+	boolean holds(MandelbrotParam mp) {
+		return mp.hasSameView(view);
+	}
+
+	/**
+	 * render a view into an array of iteration counts. If the buffer holds the view the stored orbits are continued or reused and
+	 * the whole array is reported to the sink at once; otherwise every pixel is computed on the tile engine and the orbits are stored.
+	 * @param engine the tile engine the pixels are scheduled on.
+	 * @param mp the view, iteration count included.
+	 * @param radiusSquared
+	 * @param iterations the array receiving the value of pixel (x, y) at index y * width + x.
+	 * @param sink notified as pixels are finished, may be null.
+	 * @param cancelled polled to abandon the render, may be null. An abandoned render keeps the orbits consistent.
+	 */
+	void render(MandelbrotCalculator engine, MandelbrotParam mp, double radiusSquared, int[] iterations,
+			MandelbrotSink sink, BooleanSupplier cancelled) {
+		if (!holds(mp) || radiusSquared != this.radiusSquared) {
+			compute(engine, mp, radiusSquared, iterations, sink, cancelled);
+			return;
+		}
+		if (!refine(engine, mp.getMaxIteration(), cancelled)) {
+			return;
+		}
+		final int maxIterations = mp.getMaxIteration();
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int i = y * width, end = i + width; i < end; i++) {
+				iterations[i] = Math.min(counts[i], maxIterations);
+			}
+		});
+		if (sink != null) {
+			sink.tileComputed(0, 0, width, height, iterations, 0, width);
+		}
+	}
+
+	/**
+	 * compute every pixel of a new view from Z = 0.
+	 */
+	private void compute(MandelbrotCalculator engine, MandelbrotParam mp, final double radiusSquared, int[] iterations,
+			MandelbrotSink sink, BooleanSupplier cancelled) {
+		view = null;
+		Arrays.fill(counts, UNSET);
+		final int maxIterations = mp.getMaxIteration();
+		this.radiusSquared = radiusSquared;
+		minReal = mp.getMinReal();
+		minImaginary = mp.getMinImag();
+		realStep = (mp.getMaxReal() - minReal) / width;
+		imaginaryStep = (mp.getMaxImag() - minImaginary) / height;
+		engine.calcMandelbrotSet(iterations, width, height, new PixelFunction() {
+			public int valueAt(int x, int y) {
+				int index = y * width + x;
+				double cReal = minReal + x * realStep;
+				double cImaginary = minImaginary + y * imaginaryStep;
+				if (radiusSquared >= MandelbrotCalculator.DEFAULT_RADIUS_SQUARED
+						&& MandelbrotCalculator.isInCardioidOrBulb(cReal, cImaginary)) {
+					counts[index] = INTERIOR;
+					zr[index] = Double.NaN;
+					return maxIterations;
+				}
+				counts[index] = 0;
+				zr[index] = 0;
+				zi[index] = 0;
+				iterate(index, cReal, cImaginary, maxIterations);
+				return Math.min(counts[index], maxIterations);
+			}
+		}, 1, sink, cancelled);
+		if (cancelled != null && cancelled.getAsBoolean()) {
+			return;
+		}
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == UNSET) {
+				if (iterations[i] >= maxIterations) {
+					if (radiusSquared >= MandelbrotCalculator.DEFAULT_RADIUS_SQUARED && MandelbrotCalculator.isInCardioidOrBulb(
+							minReal + (i % width) * realStep, minImaginary + (i / width) * imaginaryStep)) {
+						counts[i] = INTERIOR;
+						zr[i] = Double.NaN;
+						continue;
+					}
+					//not proved bounded: a later render continues it from the start
+					counts[i] = 0;
+					zr[i] = 0;
+					zi[i] = 0;
+				} else {
+					counts[i] = iterations[i];
+					zr[i] = Double.NaN;
+				}
+			}
+		}
+		unresolved = unresolvedPixels();
+		view = mp;
+	}
+
+	/**
+	 * continue the unresolved orbits that have not reached the given number of iterations yet, on the pool of the tile engine.
+	 * When the max iteration number is lowered, only the orbits kept from Z = 0 for filled pixels are short of it.
+	 * @return false if the refinement was abandoned.
+	 */
+	private boolean refine(MandelbrotCalculator engine, final int maxIterations, final BooleanSupplier cancelled) {
+		final int[] pixels = unresolved;
+		engine.getPool().submit(() -> IntStream.range(0, pixels.length).parallel().forEach(k -> {
+			int index = pixels[k];
+			if (counts[index] >= maxIterations || Double.isNaN(zr[index])
+					|| (cancelled != null && cancelled.getAsBoolean())) {
+				return;	//resolved or continued by an abandoned refinement
+			}
+			iterate(index, minReal + (index % width) * realStep, minImaginary + (index / width) * imaginaryStep, maxIterations);
+		})).join();
+		if (cancelled != null && cancelled.getAsBoolean()) {
+			return false;
+		}
+		unresolved = unresolvedPixels();
+		return true;
+	}
+
+	/**
+	 * continue the orbit of one pixel from its stored state up to maxIterations, with the loop of calcMandelOptimised.
+	 * An orbit proved periodic by its check is bounded.
+	 */
+	private void iterate(int index, double cReal, double cImaginary, int maxIterations) {
+		int result = MandelbrotCalculator.iterateOrbit(cReal, cImaginary, counts[index], maxIterations, radiusSquared, zr, zi, null, index);
+		if ((result & MandelbrotCalculator.ESCAPED) == 0 && Double.isNaN(zr[index])) {
+			counts[index] = INTERIOR;
+		} else {
+			counts[index] = result & ~MandelbrotCalculator.ESCAPED;
+		}
+	}
+
+	private int[] unresolvedPixels() {
+		int[] pixels = new int[counts.length];
+		int count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (!Double.isNaN(zr[i])) {
+				pixels[count++] = i;
+			}
+		}
+		return Arrays.copyOf(pixels, count);
+	}
+
+	/**
+	 * @return the number of pixels whose orbit would be continued by raising the max iteration number.
+	 */
+	int getUnresolvedCount() {
+		return unresolved.length;
+	}
+}
@@ -0,0 +1,59 @@
+package Model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Palette class maps iteration counts to colours through a lookup table.
+ * A table holds the colour of every iteration count from 0 to maxIteration for one colour scheme, so colouring a pixel
+ * is a single array access instead of a call to ModelCalculator.calculateColor.
+ * Tables are built once per (colour scheme, max iteration) pair and kept in a small least-recently-used cache.
+ * The colours are stored without alpha, ready to be written into the raster of a TYPE_INT_RGB image.
+ * @author 170024030
+ *
+ */
+public final class Palette {
+	//the number of tables kept in the cache
+	public static final int CACHE_SIZE = 16;
+	private static final Map<String, int[]> CACHE = new LinkedHashMap<String, int[]>(CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private Palette() {
+	}
+
+	/**
+	 * get the lookup table of the given colour scheme, building it on first use.
+	 * @param colorScheme
+	 * @param maxIter from 1 to ModelCalculator.MAX_ITERATIONS.
+	 * @return an array of maxIter + 1 RGB values indexed by iteration count. The array is shared and must not be modified.
+	 * @throws IllegalArgumentException if maxIter is out of range, before anything is allocated.
+	 */
+	public static int[] lookup(String colorScheme, int maxIter) {
+		if (maxIter < 1 || maxIter > ModelCalculator.MAX_ITERATIONS) {
+			throw new IllegalArgumentException("max iteration number must be from 1 to " + ModelCalculator.MAX_ITERATIONS + ": " + maxIter);
+		}
+		String key = colorScheme + "/" + maxIter;
+		synchronized (CACHE) {
+			int[] table = CACHE.get(key);
+			if (table == null) {
+				table = build(colorScheme, maxIter);
+				CACHE.put(key, table);
+			}
+			return table;
+		}
+	}
+
+	private static int[] build(String colorScheme, int maxIter) {
+		int[] table = new int[maxIter + 1];
+		for (int val = 0; val <= maxIter; val++) {
+			table[val] = ModelCalculator.calculateColor(val, colorScheme, maxIter) & 0x00ffffff;
+		}
+		return table;
+	}
+}
@@ -0,0 +1,256 @@
+package Model;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * The PerturbationCalculator class renders views too deep for double and double-double precision coordinates.
+ * One reference orbit Z_n is computed in BigDecimal at a point of the view. Every pixel C = Cref + dc is then iterated in doubles
+ * as its difference d_n = z_n - Z_n from that orbit, using d_n+1 = 2 * Z_n * d_n + d_n^2 + dc, which only involves small numbers.
+ * A pixel is glitched when its orbit gets much closer to zero than the reference (Pauldelbrot's criterion), or when it outlives
+ * an escaping reference; glitched pixels are rendered again against a new reference chosen among them, up to MAX_REFERENCES times.
+ * The pixels are scheduled by the tile engine of a MandelbrotCalculator, so preview passes, sinks and cancellation work as for
+ * double precision renders, and the BigDecimal reference orbits are abandoned as soon as the render is cancelled.
+ * Glitches are only corrected in full resolution passes.
+ * The deltas are plain doubles, so views with a pixel spacing below about 1e-300 are out of reach.
+ * @author 170024030
+ *
+ */
+public class PerturbationCalculator {
+	//the number of reference orbits tried before the remaining glitched pixels are left as they are
+	public static final int MAX_REFERENCES = 10;
+	//a pixel is glitched when |z_n|^2 < GLITCH_TOLERANCE * |Z_n|^2
+	private static final double GLITCH_TOLERANCE = 1e-6;
+	//the BigDecimal iterations of a reference orbit between two polls of the cancellation flag
+	private static final int CANCEL_CHECK_ITERATIONS = 256;
+	private final MandelbrotCalculator tileEngine;
+
+	/**
+	 * Creates a perturbation engine scheduling its pixels on the given tile engine.
+	 * @param tileEngine
+	 */
+	public PerturbationCalculator(MandelbrotCalculator tileEngine) {
+		this.tileEngine = tileEngine;
+	}
+
+	/**
+	 * check whether a view needs the perturbation engine at the given resolution.
+	 * @param mp
+	 * @param xResolution
+	 * @param yResolution
+	 * @return true if the pixel spacing is beyond double-double precision.
+	 * @see Precision#select(MandelbrotParam, int, int)
+	 */
+	public static boolean isRequired(MandelbrotParam mp, int xResolution, int yResolution) {
+		return Precision.select(mp, xResolution, yResolution) == Precision.PERTURBATION;
+	}
+
+	/**
+	 * The orbit of the reference point, rounded to doubles.
+	 */
+	private static final class ReferenceOrbit {
+		final double offsetReal;	//the position of the reference relative to the centre of the view
+		final double offsetImag;
+		final double[] zr;
+		final double[] zi;
+		final double[] tolerance;	//GLITCH_TOLERANCE * |Z_n|^2
+		final int length;	//the number of points of the orbit, Z_0 to Z_length-1
+
+		private ReferenceOrbit(double offsetReal, double offsetImag, double[] zr, double[] zi, double[] tolerance, int length) {
+			this.offsetReal = offsetReal;
+			this.offsetImag = offsetImag;
+			this.zr = zr;
+			this.zi = zi;
+			this.tolerance = tolerance;
+			this.length = length;
+		}
+
+		/**
+		 * computes the orbit of the point at the given offset from the centre of the view, in BigDecimal.
+		 * Each iteration costs microseconds at depth, so the cancellation flag is polled every CANCEL_CHECK_ITERATIONS of them.
+		 * @param cancelled polled to abandon the orbit, may be null.
+		 * @return the orbit, or null if it was abandoned.
+		 */
+		static ReferenceOrbit compute(MandelbrotParam mp, double offsetReal, double offsetImag, int maxIterations, double radiusSquared,
+				BooleanSupplier cancelled) {
+			MathContext mc = MandelbrotParam.precisionFor(Math.min(Math.abs(mp.getRealSpan()), Math.abs(mp.getImagSpan())));
+			BigDecimal cr = mp.getCentreReal().add(new BigDecimal(offsetReal), mc);
+			BigDecimal ci = mp.getCentreImag().add(new BigDecimal(offsetImag), mc);
+			double[] zr = new double[maxIterations + 1];
+			double[] zi = new double[maxIterations + 1];
+			double[] tolerance = new double[maxIterations + 1];
+			BigDecimal r = BigDecimal.ZERO;
+			BigDecimal i = BigDecimal.ZERO;
+			int n = 0;
+			while (true) {
+				double dr = r.doubleValue();
+				double di = i.doubleValue();
+				double magnitude = dr * dr + di * di;
+				zr[n] = dr;
+				zi[n] = di;
+				tolerance[n] = GLITCH_TOLERANCE * magnitude;
+				n++;
+				if (n > maxIterations || magnitude > radiusSquared) {
+					break;
+				}
+				if (n % CANCEL_CHECK_ITERATIONS == 0 && cancelled != null && cancelled.getAsBoolean()) {
+					return null;
+				}
+				BigDecimal nr = r.multiply(r, mc).subtract(i.multiply(i, mc), mc).add(cr, mc);
+				BigDecimal ni = r.multiply(i, mc).multiply(BigDecimal.valueOf(2), mc).add(ci, mc);
+				r = nr;
+				i = ni;
+			}
+			return new ReferenceOrbit(offsetReal, offsetImag, zr, zi, tolerance, n);
+		}
+
+		/**
+		 * iterates the pixel at offset dc from the reference, with the same escape test and count as calcMandel.
+		 * @return the iteration count, or -1 - n if the pixel glitched at iteration n.
+		 */
+		int iterate(double dcr, double dci, int maxIterations, double radiusSquared) {
+			double dr = 0;
+			double di = 0;
+			for (int n = 0; n < maxIterations; n++) {
+				if (n >= length) {
+					return -1 - n;	//the reference escaped before this pixel did
+				}
+				double zrn = zr[n];
+				double zin = zi[n];
+				double r = zrn + dr;
+				double i = zin + di;
+				double magnitude = r * r + i * i;
+				if (magnitude > radiusSquared) {
+					return n + 1;
+				}
+				if (magnitude < tolerance[n]) {
+					return -1 - n;
+				}
+				double ndr = 2 * (zrn * dr - zin * di) + (dr * dr - di * di) + dcr;
+				double ndi = 2 * (zrn * di + zin * dr) + 2 * dr * di + dci;
+				dr = ndr;
+				di = ndi;
+			}
+			return maxIterations;
+		}
+	}
+
+	/**
+	 * Method to calculate the Mandelbrot set of a deep view into a flat array.
+	 * Pixel (x, y) is at C = centre + (x * realSpan / xResolution - realSpan / 2) + i * (y * imagSpan / yResolution - imagSpan / 2),
+	 * the same position as in the double precision engine.
+	 * @param mandelbrotData the array receiving the value of pixel (x, y) at index y * xResolution + x.
+	 * @param xResolution
+	 * @param yResolution
+	 * @param mp the view, iteration count included.
+	 * @param radiusSquared
+	 * @param step the side length of the blocks sampled by one computed pixel, 1 for a full render.
+	 * @param sink notified as tiles are finished and again for the rows changed by glitch correction, may be null.
+	 * @param cancelled polled to abandon the render, may be null.
+	 */
+	public void calcMandelbrotSet(final int[] mandelbrotData, final int xResolution, final int yResolution, MandelbrotParam mp,
+			final double radiusSquared, int step, MandelbrotSink sink, BooleanSupplier cancelled) {
+		final int maxIterations = mp.getMaxIteration();
+		final double realStep = mp.getRealSpan() / xResolution;
+		final double imagStep = mp.getImagSpan() / yResolution;
+		final double realOrigin = -mp.getRealSpan() / 2;
+		final double imagOrigin = -mp.getImagSpan() / 2;
+		final boolean[] glitched = step == 1 ? new boolean[xResolution * yResolution] : null;
+		final ReferenceOrbit centre = ReferenceOrbit.compute(mp, 0, 0, maxIterations, radiusSquared, cancelled);
+		if (centre == null) {
+			return;
+		}
+
+		tileEngine.calcMandelbrotSet(mandelbrotData, xResolution, yResolution, new PixelFunction() {
+			public int valueAt(int x, int y) {
+				int value = centre.iterate(realOrigin + x * realStep, imagOrigin + y * imagStep, maxIterations, radiusSquared);
+				if (value >= 0) {
+					return value;
+				}
+				if (glitched != null) {
+					glitched[y * xResolution + x] = true;
+				}
+				return -1 - value;	//the iteration reached, until it is corrected
+			}
+		}, step, sink, cancelled);
+		if (glitched == null) {
+			return;
+		}
+
+		int[] pending = glitchedPixels(glitched);
+		final boolean[] changedRows = new boolean[yResolution];
+		for (int references = 1; references < MAX_REFERENCES && pending.length > 0; references++) {
+			if (cancelled != null && cancelled.getAsBoolean()) {
+				return;
+			}
+			int pick = pending[pending.length / 2];
+			final ReferenceOrbit ref = ReferenceOrbit.compute(mp,
+					realOrigin + (pick % xResolution) * realStep,
+					imagOrigin + (pick / xResolution) * imagStep,
+					maxIterations, radiusSquared, cancelled);
+			if (ref == null) {
+				return;
+			}
+			final int[] pixels = pending;
+			tileEngine.getPool().submit(() -> IntStream.range(0, pixels.length).parallel().forEach(k -> {
+				int index = pixels[k];
+				int x = index % xResolution;
+				int y = index / xResolution;
+				int value = ref.iterate(realOrigin + x * realStep - ref.offsetReal, imagOrigin + y * imagStep - ref.offsetImag,
+						maxIterations, radiusSquared);
+				if (value >= 0) {
+					mandelbrotData[index] = value;
+					glitched[index] = false;
+					changedRows[y] = true;
+				}
+			})).join();
+			pending = glitchedPixels(glitched);
+		}
+		if (sink != null) {
+			for (int y = 0; y < yResolution; y++) {
+				if (changedRows[y]) {
+					sink.tileComputed(0, y, xResolution, 1, mandelbrotData, y * xResolution, xResolution);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to calculate the iteration counts at points of a deep view by perturbation.
+	 * Only the reference orbit at the centre is used: a glitched point keeps the iteration it glitched at.
+	 * @param radiusSquared
+	 * @see ViewRenderer#sample(int[], int, int, MandelbrotParam, double[], double[], BooleanSupplier)
+	 */
+	void sample(int[] counts, int xResolution, int yResolution, MandelbrotParam mp, final double[] xs, final double[] ys,
+			final double radiusSquared, BooleanSupplier cancelled) {
+		final int maxIterations = mp.getMaxIteration();
+		final double realStep = mp.getRealSpan() / xResolution;
+		final double imagStep = mp.getImagSpan() / yResolution;
+		final double realOrigin = -mp.getRealSpan() / 2;
+		final double imagOrigin = -mp.getImagSpan() / 2;
+		final ReferenceOrbit centre = ReferenceOrbit.compute(mp, 0, 0, maxIterations, radiusSquared, cancelled);
+		if (centre == null) {
+			return;
+		}
+		tileEngine.calcMandelbrotSet(counts, xs.length, 1, new PixelFunction() {
+			public int valueAt(int k, int y) {
+				int value = centre.iterate(realOrigin + xs[k] * realStep, imagOrigin + ys[k] * imagStep, maxIterations, radiusSquared);
+				return value >= 0 ? value : -1 - value;
+			}
+		}, 1, null, cancelled);
+	}
+
+	private static int[] glitchedPixels(boolean[] glitched) {
+		int[] pixels = new int[glitched.length];
+		int count = 0;
+		for (int i = 0; i < glitched.length; i++) {
+			if (glitched[i]) {
+				pixels[count++] = i;
+			}
+		}
+		return Arrays.copyOf(pixels, count);
+	}
+}
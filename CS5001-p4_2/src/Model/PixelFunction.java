@@ -0,0 +1,16 @@
+package Model;
+
+/**
+ * The PixelFunction interface lets an engine that does not work on double coordinates, such as the perturbation engine,
+ * compute its pixels through the tile engine and so share its scheduling, preview passes, sinks and cancellation.
+ * @author 170024030
+ *
+ */
+interface PixelFunction {
+	/**
+	 * @param x the pixel column.
+	 * @param y the pixel row.
+	 * @return the iteration count of the pixel.
+	 */
+	int valueAt(int x, int y);
+}
@@ -0,0 +1,335 @@
+package Model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The PosterRenderer class renders views far larger than the heap, e.g. 40000x40000 prints, straight into a PNG file.
+ * The image is cut into horizontal bands which are rendered as sub-views by the tile engine, a few bands ahead of the encoder,
+ * and every band is deflated into its own IDAT chunk as soon as it is its turn, so the memory used is bounded by the band size
+ * and the number of bands in flight, not by the image size.
+ * After each band the file is flushed to disk and a checkpoint is written next to it, recording how far the render got,
+ * the length of the file and the running checksum of the compressed data. Running the same command again after an interruption
+ * truncates the file to the checkpoint and carries on from the next band; the checkpoint is deleted once the image is complete.
+ * The deflate stream is flushed to a byte boundary at the end of every band, so a resumed render can start a new compressor.
+ * 	example usage:
+ * 		java Model.PosterRenderer -size 40000x40000 -iterations 5000 MSData_2017-11-24_19:51:33.ser poster.png
+ * 		java Model.PosterRenderer -size 20000x10000 -view "-0.75 0.1 0.02" poster.png
+ * @author 170024030
+ *
+ */
+public class PosterRenderer {
+	private static final String USAGE = "usage: java Model.PosterRenderer [-size WIDTHxHEIGHT] [-band ROWS] [-iterations N]"
+			+ " [-palette NAME] [-threads N] (FILE | -view \"centreReal centreImag realSpan [imagSpan [maxIteration [colorScheme]]]\") OUTPUT.png";
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	//the number of bands rendered ahead of the encoder
+	private static final int BANDS_IN_FLIGHT = 2;
+	//the largest number the Adler-32 sums can take before they must be reduced
+	private static final int ADLER_BLOCK = 5552;
+	private static final int ADLER_MODULUS = 65521;
+	private int width = 8000;
+	private int height = 8000;
+	private int bandHeight = 64;
+	private int maxIteration;
+	private String colorScheme;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private String viewSpec;
+	private File input;
+	private File output;
+
+	public static void main(String[] args) {
+		PosterRenderer poster = new PosterRenderer();
+		try {
+			poster.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		try {
+			poster.run();
+		} catch (IOException | ClassNotFoundException | ClassCastException | IllegalStateException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private void parse(String[] args) {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("-")) {
+				files.add(new File(arg));
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("missing value for " + arg);
+			}
+			String value = args[++i];
+			switch (arg) {
+			case "-size":
+				String[] size = value.toLowerCase().split("x");
+				if (size.length != 2) {
+					throw new IllegalArgumentException("size must be WIDTHxHEIGHT: " + value);
+				}
+				width = BatchRenderer.positive(arg, size[0]);
+				height = BatchRenderer.positive(arg, size[1]);
+				break;
+			case "-band":
+				bandHeight = BatchRenderer.positive(arg, value);
+				break;
+			case "-iterations":
+				maxIteration = BatchRenderer.positive(arg, value);
+				break;
+			case "-palette":
+				colorScheme = BatchRenderer.colorScheme(value);
+				break;
+			case "-threads":
+				threads = BatchRenderer.positive(arg, value);
+				break;
+			case "-view":
+				viewSpec = value;
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + arg);
+			}
+		}
+		if (files.size() == 2 && viewSpec == null) {
+			input = files.get(0);
+		}
+		output = files.isEmpty() ? null : files.get(files.size() - 1);
+		if (files.size() != (viewSpec == null ? 2 : 1)) {
+			throw new IllegalArgumentException("expected one view, as a file or with -view, and an output file");
+		}
+		if ((long) width * 3 + 1 > Integer.MAX_VALUE / bandHeight) {
+			throw new IllegalArgumentException("bands of " + bandHeight + " rows are too large at width " + width);
+		}
+	}
+
+	/**
+	 * render the poster, resuming from the checkpoint if there is one for the same render.
+	 */
+	private void run() throws IOException, ClassNotFoundException {
+		MandelbrotParam view = viewSpec != null ? BatchRenderer.parseSpec(viewSpec, width, height) : BatchRenderer.readParam(input);
+		final MandelbrotParam mp = BatchRenderer.fit(view, width, height, colorScheme, maxIteration);
+		File checkpointFile = new File(output.getPath() + ".checkpoint");
+		Properties expected = describe(mp);
+		Properties checkpoint = new Properties();
+		int firstBand = 0;
+		long length = 0;
+		long adler = 1;
+		if (checkpointFile.exists()) {
+			try (InputStream in = new FileInputStream(checkpointFile)) {
+				checkpoint.load(in);
+			}
+			for (String key : expected.stringPropertyNames()) {
+				if (!expected.getProperty(key).equals(checkpoint.getProperty(key))) {
+					throw new IllegalStateException(checkpointFile + " belongs to another render (" + key + " differs), delete it to start over");
+				}
+			}
+			try {
+				firstBand = Integer.parseInt(checkpoint.getProperty("nextBand"));
+				length = Long.parseLong(checkpoint.getProperty("length"));
+				adler = Long.parseLong(checkpoint.getProperty("adler"));
+			} catch (NumberFormatException e) {
+				throw new IllegalStateException(checkpointFile + " is corrupt, delete it to start over");
+			}
+			System.out.printf("resuming %s at row %d%n", output, Math.min(firstBand * bandHeight, height));
+		}
+
+		final ViewRenderer renderer = new ViewRenderer(new MandelbrotCalculator(MandelbrotCalculator.DEFAULT_TILE_SIZE, threads));
+		final int bands = (height + bandHeight - 1) / bandHeight;
+		ExecutorService bandExecutor = Executors.newFixedThreadPool(BANDS_IN_FLIGHT);
+		ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			if (firstBand == 0) {
+				channel.truncate(0);
+				ByteArrayOutputStream header = new ByteArrayOutputStream();
+				header.write(SIGNATURE);
+				ByteBuffer ihdr = ByteBuffer.allocate(13);
+				ihdr.putInt(width).putInt(height).put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+				writeChunk(header, "IHDR", ihdr.array(), 13);
+				//the zlib header: deflate with a 32K window, no preset dictionary
+				writeChunk(header, "IDAT", new byte[] {0x78, 0x01}, 2);
+				channel.write(ByteBuffer.wrap(header.toByteArray()));
+				length = channel.position();
+			} else {
+				if (channel.size() < length) {
+					throw new IllegalStateException(output + " is shorter than its checkpoint, delete the checkpoint to start over");
+				}
+				channel.truncate(length);
+			}
+			channel.position(length);
+
+			int next = firstBand;
+			for (int band = firstBand; band < bands; band++) {
+				while (next < bands && next < band + BANDS_IN_FLIGHT) {
+					final int first = next * bandHeight;
+					final int rows = Math.min(bandHeight, height - first);
+					inFlight.add(bandExecutor.submit(() -> renderBand(renderer, mp, first, rows)));
+					next++;
+				}
+				byte[] scanlines = inFlight.remove().get();
+				adler = adler32(adler, scanlines);
+				deflater.setInput(scanlines);
+				boolean last = band == bands - 1;
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				if (last) {
+					deflater.finish();
+				}
+				deflate(deflater, chunk, last);
+				if (last) {
+					chunk.write(ByteBuffer.allocate(4).putInt((int) adler).array());
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.size() + 12);
+				writeChunk(out, "IDAT", chunk.toByteArray(), chunk.size());
+				if (last) {
+					writeChunk(out, "IEND", new byte[0], 0);
+				}
+				channel.write(ByteBuffer.wrap(out.toByteArray()));
+				channel.force(false);
+				length = channel.position();
+				saveCheckpoint(checkpointFile, expected, band + 1, length, adler);
+				int done = Math.min((band + 1) * bandHeight, height);
+				System.out.printf("rows %d/%d, %.1f s, %d MB written%n", done, height, (System.nanoTime() - start) / 1e9, length >> 20);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("band failed", e.getCause());
+		} finally {
+			bandExecutor.shutdownNow();
+			deflater.end();
+		}
+		Files.deleteIfExists(checkpointFile.toPath());
+		System.out.printf("%s: %dx%d, %d bands of %d rows, %.1f s%n", output, width, height, bands, bandHeight, (System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * render rows first to first + rows - 1 of the poster as a view of their own, and return them as filtered PNG scanlines.
+	 * Each scanline uses the Sub filter, which stores every byte as the difference from the same colour of the pixel to its left.
+	 */
+	private byte[] renderBand(ViewRenderer renderer, MandelbrotParam mp, int first, int rows) {
+		MandelbrotParam band = mp.zoomTo(0, first, width, first + rows, width, height);
+		int[] iterations = new int[width * rows];
+		renderer.calculate(iterations, width, rows, band, 1, null, null);
+		int[] palette = Palette.lookup(mp.getColorScheme(), mp.getMaxIteration());
+		int stride = width * 3 + 1;
+		byte[] scanlines = new byte[stride * rows];
+		for (int y = 0; y < rows; y++) {
+			int to = y * stride;
+			scanlines[to++] = 1;
+			int previous = 0;
+			for (int x = 0; x < width; x++) {
+				int rgb = palette[iterations[y * width + x]];
+				scanlines[to++] = (byte) ((rgb >> 16) - (previous >> 16));
+				scanlines[to++] = (byte) ((rgb >> 8) - (previous >> 8));
+				scanlines[to++] = (byte) (rgb - previous);
+				previous = rgb;
+			}
+		}
+		return scanlines;
+	}
+
+	/**
+	 * compress all the input of the deflater, up to the end of the stream once finish has been called on it,
+	 * or otherwise up to a byte boundary.
+	 */
+	private static void deflate(Deflater deflater, ByteArrayOutputStream out, boolean last) {
+		byte[] buffer = new byte[64 * 1024];
+		while (true) {
+			int n = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+			out.write(buffer, 0, n);
+			if (last ? deflater.finished() : n < buffer.length) {
+				return;
+			}
+		}
+	}
+
+	private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+		byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(data, 0, length);
+		ByteBuffer chunk = ByteBuffer.allocate(length + 12);
+		chunk.putInt(length).put(name).put(data, 0, length).putInt((int) crc.getValue());
+		out.write(chunk.array());
+	}
+
+	/**
+	 * continue an Adler-32 checksum, whose state unlike java.util.zip.Adler32 can be saved in the checkpoint.
+	 */
+	static long adler32(long adler, byte[] data) {
+		long a = adler & 0xffff;
+		long b = adler >>> 16;
+		for (int from = 0; from < data.length; from += ADLER_BLOCK) {
+			int to = Math.min(from + ADLER_BLOCK, data.length);
+			for (int i = from; i < to; i++) {
+				a += data[i] & 0xff;
+				b += a;
+			}
+			a %= ADLER_MODULUS;
+			b %= ADLER_MODULUS;
+		}
+		return (b << 16) | a;
+	}
+
+	/**
+	 * the settings a checkpoint must match to be resumed.
+	 */
+	private Properties describe(MandelbrotParam mp) {
+		Properties p = new Properties();
+		p.setProperty("centreReal", mp.getCentreReal().toString());
+		p.setProperty("centreImag", mp.getCentreImag().toString());
+		p.setProperty("realSpan", Double.toString(mp.getRealSpan()));
+		p.setProperty("imagSpan", Double.toString(mp.getImagSpan()));
+		p.setProperty("maxIteration", Integer.toString(mp.getMaxIteration()));
+		p.setProperty("colorScheme", mp.getColorScheme());
+		p.setProperty("width", Integer.toString(width));
+		p.setProperty("height", Integer.toString(height));
+		p.setProperty("bandHeight", Integer.toString(bandHeight));
+		return p;
+	}
+
+	/**
+	 * replace the checkpoint, through a temporary file so that an interruption never leaves half of it.
+	 */
+	private static void saveCheckpoint(File file, Properties settings, int nextBand, long length, long adler) throws IOException {
+		Properties p = new Properties();
+		p.putAll(settings);
+		p.setProperty("nextBand", Integer.toString(nextBand));
+		p.setProperty("length", Long.toString(length));
+		p.setProperty("adler", Long.toString(adler));
+		File temporary = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temporary)) {
+			p.store(out, "PosterRenderer checkpoint");
+			out.getFD().sync();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,39 @@
+package Model;
+
+/**
+ * The Precision enum lists the arithmetic tiers used to render a view, from the cheapest to the deepest.
+ * The tier is chosen from the pixel spacing of the view: each tier is used until adjacent pixels can no longer be told apart in it.
+ * @author 170024030
+ *
+ */
+public enum Precision {
+	/** plain doubles in the MandelbrotCalculator kernels. */
+	DOUBLE,
+	/** double-double arithmetic in the DoubleDoubleCalculator. */
+	DOUBLE_DOUBLE,
+	/** double deltas against a BigDecimal reference orbit in the PerturbationCalculator. */
+	PERTURBATION;
+
+	//pixel spacing below which double precision coordinates can no longer tell adjacent pixels apart reliably
+	public static final double MIN_DOUBLE_PIXEL_SPACING = 1e-15;
+	//the same limit for double-double coordinates, with about 106 bits of mantissa
+	public static final double MIN_DOUBLE_DOUBLE_PIXEL_SPACING = 1e-30;
+
+	/**
+	 * choose the cheapest tier able to render a view at the given resolution.
+	 * @param mp
+	 * @param xResolution
+	 * @param yResolution
+	 * @return the precision tier.
+	 */
+	public static Precision select(MandelbrotParam mp, int xResolution, int yResolution) {
+		double spacing = Math.min(Math.abs(mp.getRealSpan()) / xResolution, Math.abs(mp.getImagSpan()) / yResolution);
+		if (spacing >= MIN_DOUBLE_PIXEL_SPACING) {
+			return DOUBLE;
+		}
+		if (spacing >= MIN_DOUBLE_DOUBLE_PIXEL_SPACING) {
+			return DOUBLE_DOUBLE;
+		}
+		return PERTURBATION;
+	}
+}
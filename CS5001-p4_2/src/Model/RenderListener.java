@@ -0,0 +1,15 @@
+package Model;
+
+/**
+ * The RenderListener interface is notified while a background render of the ModelCalculator publishes new pixels to its image.
+ * It is called from the render threads, so implementations should only schedule a repaint.
+ * @author 170024030
+ *
+ */
+public interface RenderListener {
+	/**
+	 * called whenever part of the image has been updated.
+	 * @param complete true once the image holds the full resolution render of the requested state.
+	 */
+	void imageUpdated(boolean complete);
+}
@@ -0,0 +1,310 @@
+package Model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The RenderMetrics class is the registry of the numbers telling where the time of a render goes.
+ * The tile engine reports every tile it computes: its time, its pixels and their iteration counts, whose sum is an upper bound
+ * on the iterations executed: interior pixels caught by the cardioid test or by periodicity checking count as max iteration,
+ * and orbits continued from an earlier render count in full.
+ * Tile times are kept in a histogram of power of two buckets of microseconds.
+ * A render of the explorer records the time of its phases: reprojecting the previous view, computing, and colouring, which
+ * also counts the colouring of tiles done on the workers while they compute, so the phases may add up to more than the wall time.
+ * Its pixel and iteration numbers are the growth of the totals while it ran, so renders running at the same time share them.
+ * Other numbers, such as the hit rates of caches, are registered as named gauges and read when a snapshot is taken.
+ * When the runtime has Java Flight Recorder every finished render is also committed as a Model.Render event,
+ * and every tile as a Model.Tile event, which is disabled unless a recording enables it.
+ * All methods are thread-safe.
+ * @author 170024030
+ *
+ */
+public final class RenderMetrics {
+	private static final RenderMetrics GLOBAL = new RenderMetrics();
+	private static final FlightRecorderEvents FLIGHT_RECORDER = FlightRecorderEvents.create();	//null if the runtime has no Flight Recorder
+	private static final int BUCKETS = 32;
+	private final LongAdder tiles = new LongAdder();
+	private final LongAdder pixels = new LongAdder();
+	private final LongAdder iterations = new LongAdder();
+	private final LongAdder tileNanos = new LongAdder();
+	private final AtomicLongArray tileHistogram = new AtomicLongArray(BUCKETS);
+	private final LongAdder renders = new LongAdder();
+	private final LongAdder cancelledRenders = new LongAdder();
+	private final Map<String, DoubleSupplier> gauges = new LinkedHashMap<String, DoubleSupplier>();
+	private volatile Render lastRender;	//the last render that finished, null if none
+	private volatile long paintNanos;	//the time the canvas last took to paint
+
+	/**
+	 * The phases of a render.
+	 */
+	public enum Phase {
+		REPROJECT, COMPUTE, COLOUR
+	}
+
+	/**
+	 * The numbers of one render, from startRender to finish.
+	 */
+	public static final class Render {
+		private final RenderMetrics metrics;
+		private final MandelbrotParam state;
+		private final int width;
+		private final int height;
+		private final long start = System.nanoTime();
+		private final long pixelsAtStart;
+		private final long iterationsAtStart;
+		private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+		private volatile long wallNanos = -1;
+		private volatile long pixels;
+		private volatile long iterations;
+		private volatile boolean complete;
+
+		private Render(RenderMetrics metrics, MandelbrotParam state, int width, int height) {
+			this.metrics = metrics;
+			this.state = state;
+			this.width = width;
+			this.height = height;
+			this.pixelsAtStart = metrics.pixels.sum();
+			this.iterationsAtStart = metrics.iterations.sum();
+		}
+
+		/**
+		 * add time spent in a phase.
+		 */
+		public void addPhase(Phase phase, long nanos) {
+			phaseNanos.addAndGet(phase.ordinal(), nanos);
+		}
+
+		/**
+		 * end the render and make it the last render of the registry.
+		 * @param complete false if the render was cancelled.
+		 */
+		public void finish(boolean complete) {
+			pixels = metrics.pixels.sum() - pixelsAtStart;
+			iterations = metrics.iterations.sum() - iterationsAtStart;
+			this.complete = complete;
+			wallNanos = System.nanoTime() - start;
+			metrics.finished(this);
+		}
+
+		public MandelbrotParam getState() {
+			return state;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public long getPhaseNanos(Phase phase) {
+			return phaseNanos.get(phase.ordinal());
+		}
+
+		/**
+		 * @return the time from start to finish, or -1 while the render runs.
+		 */
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		public long getPixels() {
+			return pixels;
+		}
+
+		public long getIterations() {
+			return iterations;
+		}
+
+		public boolean isComplete() {
+			return complete;
+		}
+
+		public double getPixelsPerSecond() {
+			return wallNanos > 0 ? pixels / (wallNanos / 1e9) : 0;
+		}
+
+		public double getIterationsPerSecond() {
+			return wallNanos > 0 ? iterations / (wallNanos / 1e9) : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%dx%d %s: %.1f ms (reproject %.1f, compute %.1f, colour %.1f), "
+					+ "%d pixels, %.3g iterations, %.3g pixels/s, %.3g iterations/s",
+					width, height, complete ? "complete" : "cancelled", wallNanos / 1e6,
+					getPhaseNanos(Phase.REPROJECT) / 1e6, getPhaseNanos(Phase.COMPUTE) / 1e6, getPhaseNanos(Phase.COLOUR) / 1e6,
+					pixels, (double) iterations, getPixelsPerSecond(), getIterationsPerSecond());
+		}
+	}
+
+	/**
+	 * @return the registry every engine reports to.
+	 */
+	public static RenderMetrics global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * record a tile computed by the tile engine.
+	 * @param nanos the time the tile took.
+	 * @param tilePixels the number of pixels computed, not counting those filled in without computing them.
+	 * @param tileIterations the sum of the iteration counts of the computed pixels.
+	 */
+	void tileComputed(long nanos, long tilePixels, long tileIterations) {
+		tiles.increment();
+		tileNanos.add(nanos);
+		pixels.add(tilePixels);
+		iterations.add(tileIterations);
+		long micros = Math.max(nanos / 1000, 1);
+		tileHistogram.incrementAndGet(Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+		if (FLIGHT_RECORDER != null) {
+			FLIGHT_RECORDER.tile(nanos, tilePixels, tileIterations);
+		}
+	}
+
+	/**
+	 * start timing a render.
+	 * @param state the state rendered.
+	 * @param width
+	 * @param height
+	 * @return the render, to be finished once it completes or is cancelled.
+	 */
+	public Render startRender(MandelbrotParam state, int width, int height) {
+		return new Render(this, state, width, height);
+	}
+
+	private void finished(Render render) {
+		renders.increment();
+		if (!render.complete) {
+			cancelledRenders.increment();
+		}
+		lastRender = render;
+		if (FLIGHT_RECORDER != null) {
+			FLIGHT_RECORDER.render(render);
+		}
+	}
+
+	/**
+	 * record the time the canvas took to paint.
+	 */
+	public void paintTook(long nanos) {
+		paintNanos = nanos;
+	}
+
+	/**
+	 * register a number read whenever a snapshot is taken, replacing any gauge of the same name.
+	 */
+	public void gauge(String name, DoubleSupplier value) {
+		synchronized (gauges) {
+			gauges.put(name, value);
+		}
+	}
+
+	/**
+	 * @return the current value of every gauge, in the order they were first registered.
+	 */
+	public Map<String, Double> readGauges() {
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		synchronized (gauges) {
+			for (Map.Entry<String, DoubleSupplier> gauge : gauges.entrySet()) {
+				values.put(gauge.getKey(), gauge.getValue().getAsDouble());
+			}
+		}
+		return values;
+	}
+
+	public Render getLastRender() {
+		return lastRender;
+	}
+
+	public long getPaintNanos() {
+		return paintNanos;
+	}
+
+	public long getTiles() {
+		return tiles.sum();
+	}
+
+	public long getPixels() {
+		return pixels.sum();
+	}
+
+	public long getIterations() {
+		return iterations.sum();
+	}
+
+	public long getRenders() {
+		return renders.sum();
+	}
+
+	public long getCancelledRenders() {
+		return cancelledRenders.sum();
+	}
+
+	/**
+	 * @return the number of tiles by the time they took: bucket i counts the tiles of 2^i to 2^(i+1) microseconds.
+	 */
+	public long[] getTileHistogram() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = tileHistogram.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the time under which the given share of the tiles finished, in microseconds, from the histogram.
+	 */
+	public long getTilePercentile(double share) {
+		long[] counts = getTileHistogram();
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen > 0 && seen >= share * total) {
+				return 2L << i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return a few lines describing the last render, the totals and the gauges, e.g. for a heads-up display or a log.
+	 */
+	public List<String> summary() {
+		List<String> lines = new ArrayList<String>();
+		Render render = lastRender;
+		if (render != null) {
+			lines.add(String.format(Locale.ROOT, "render %s %.1f ms: reproject %.1f, compute %.1f, colour %.1f, paint %.1f",
+					render.complete ? "complete" : "cancelled", render.wallNanos / 1e6,
+					render.getPhaseNanos(Phase.REPROJECT) / 1e6, render.getPhaseNanos(Phase.COMPUTE) / 1e6,
+					render.getPhaseNanos(Phase.COLOUR) / 1e6, paintNanos / 1e6));
+			lines.add(String.format(Locale.ROOT, "%,d pixels, %.3g iterations, %.3g pixels/s, %.3g iterations/s",
+					render.pixels, (double) render.iterations, render.getPixelsPerSecond(), render.getIterationsPerSecond()));
+		}
+		long tileCount = getTiles();
+		lines.add(String.format(Locale.ROOT, "%,d renders (%,d cancelled), %,d tiles: mean %.0f us, p50 < %d us, p99 < %d us",
+				getRenders(), getCancelledRenders(), tileCount, tileCount > 0 ? tileNanos.sum() / 1e3 / tileCount : 0.0,
+				getTilePercentile(0.5), getTilePercentile(0.99)));
+		StringBuilder gaugeLine = new StringBuilder();
+		for (Map.Entry<String, Double> gauge : readGauges().entrySet()) {
+			gaugeLine.append(gaugeLine.length() > 0 ? ", " : "").append(gauge.getKey()).append(' ')
+					.append(String.format(Locale.ROOT, "%.3g", gauge.getValue()));
+		}
+		if (gaugeLine.length() > 0) {
+			lines.add(gaugeLine.toString());
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,125 @@
+package Model;
+
+import java.util.stream.IntStream;
+
+/**
+ * The Reprojection class maps the pixels of a view onto the nearest pixels of another view of the same resolution,
+ * so that the iteration counts of the previous view can stand in for the new one while it is being rendered.
+ * Pixels outside the previous view take the value of its nearest edge pixel.
+ * A pan by a whole number of pixels is aligned: every covered pixel then lies on a sample of the previous view,
+ * so its count is final and only the uncovered strips need to be computed.
+ * @author 170024030
+ *
+ */
+final class Reprojection {
+	//the distance in pixels below which two sample grids are taken to be the same
+	private static final double ALIGNMENT_TOLERANCE = 1e-6;
+	private final int width;
+	private final int[] sourceX;	//the column of the previous view nearest to each column of the new one
+	private final int[] sourceY;	//the row of the previous view nearest to each row of the new one
+	private final int left;	//the covered columns are left to right - 1
+	private final int right;
+	private final int top;	//the covered rows are top to bottom - 1
+	private final int bottom;
+	private final boolean aligned;
+
+	private Reprojection(int width, int[] sourceX, int[] sourceY, int[] columns, int[] rows, boolean aligned) {
+		this.width = width;
+		this.sourceX = sourceX;
+		this.sourceY = sourceY;
+		this.left = columns[0];
+		this.right = columns[1];
+		this.top = rows[0];
+		this.bottom = rows[1];
+		this.aligned = aligned;
+	}
+
+	/**
+	 * map a view onto the previous one.
+	 * @param previous the view whose pixels are reused.
+	 * @param next the view being rendered.
+	 * @param width the resolution of both views.
+	 * @param height
+	 * @return the mapping, or null if the views do not overlap.
+	 */
+	static Reprojection between(MandelbrotParam previous, MandelbrotParam next, int width, int height) {
+		double realScale = next.getRealSpan() / previous.getRealSpan();
+		double imagScale = next.getImagSpan() / previous.getImagSpan();
+		if (!(realScale > 0) || !(imagScale > 0)) {
+			return null;
+		}
+		//the position of the first pixel of the next view, in pixels of the previous one
+		double x0 = (next.getCentreReal().subtract(previous.getCentreReal()).doubleValue()
+				+ (previous.getRealSpan() - next.getRealSpan()) / 2) / (previous.getRealSpan() / width);
+		double y0 = (next.getCentreImag().subtract(previous.getCentreImag()).doubleValue()
+				+ (previous.getImagSpan() - next.getImagSpan()) / 2) / (previous.getImagSpan() / height);
+		int[] columns = new int[2];
+		int[] rows = new int[2];
+		int[] sourceX = axis(x0, realScale, width, columns);
+		int[] sourceY = axis(y0, imagScale, height, rows);
+		if (columns[0] >= columns[1] || rows[0] >= rows[1]) {
+			return null;
+		}
+		boolean aligned = realScale == 1 && imagScale == 1
+				&& Math.abs(x0 - Math.rint(x0)) < ALIGNMENT_TOLERANCE
+				&& Math.abs(y0 - Math.rint(y0)) < ALIGNMENT_TOLERANCE;
+		return new Reprojection(width, sourceX, sourceY, columns, rows, aligned);
+	}
+
+	/**
+	 * the nearest source index of each index along one axis, clamped to the source, and the range of indices that are covered.
+	 */
+	private static int[] axis(double origin, double scale, int length, int[] covered) {
+		int[] source = new int[length];
+		covered[0] = length;
+		covered[1] = 0;
+		for (int i = 0; i < length; i++) {
+			double position = Math.rint(origin + i * scale);
+			if (position >= 0 && position < length) {
+				covered[0] = Math.min(covered[0], i);
+				covered[1] = i + 1;
+			}
+			source[i] = (int) Math.max(0, Math.min(length - 1, position));
+		}
+		return source;
+	}
+
+	/**
+	 * copy the counts of the previous view into the pixels of the new one, row by row on the fork-join workers.
+	 * @param source the iteration counts of the previous view.
+	 * @param destination the array receiving the reprojected counts, not the same as source.
+	 * @param maxIterations the max iteration number of the new view, which the counts are clamped to.
+	 */
+	void apply(final int[] source, final int[] destination, final int maxIterations) {
+		IntStream.range(0, sourceY.length).parallel().forEach(y -> {
+			int from = sourceY[y] * width;
+			int to = y * width;
+			for (int x = 0; x < width; x++) {
+				destination[to + x] = Math.min(source[from + sourceX[x]], maxIterations);
+			}
+		});
+	}
+
+	/**
+	 * @return true if the new view is a pan of the previous one by a whole number of pixels.
+	 */
+	boolean isAligned() {
+		return aligned;
+	}
+
+	int getLeft() {
+		return left;
+	}
+
+	int getRight() {
+		return right;
+	}
+
+	int getTop() {
+		return top;
+	}
+
+	int getBottom() {
+		return bottom;
+	}
+}
@@ -0,0 +1,295 @@
+package Model;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The SessionFile class reads and writes a whole session, i.e. the undo history and the index of the current state,
+ * in a compact versioned binary format. All numbers are big-endian:
+ * 		int magic "MSES", short version, short flags, int stateIndex, int count,
+ * 		count records of an int length followed by the state,
+ * 		int CRC-32 of everything before it,
+ * 		the counts of the current state if flag 1 is set, as laid out by IterationTiles.
+ * A state is its colour scheme as a byte length and ASCII characters, its int max iteration number, its double real and imaginary
+ * spans, its double minimum and maximum real and imaginary bounds, then the real and imaginary parts of its centre as an int scale,
+ * a short length and the bytes of the unscaled value. Every field is stored as it is, so a state reads back equal to the one saved.
+ * The file is memory-mapped and every length is bounded, and the session block is checked against its checksum, so a corrupt
+ * or truncated file is reported as an IOException rather than building a broken history. The counts stay in the mapping until
+ * they are needed. It is written to a temporary file that is then moved over
+ * the target, so an interrupted save never leaves half a session behind.
+ * @author 170024030
+ *
+ */
+public final class SessionFile {
+	public static final String EXTENSION = ".mss";
+	private static final int MAGIC = 0x4d534553;	//"MSES"
+	private static final short VERSION = 1;
+	private static final short ITERATIONS = 1;	//the flag set when the counts of the current state follow the session block
+	private static final int HEADER_BYTES = 16;
+	private static final int MIN_RECORD_BYTES = 1 + 4 + 6 * 8 + 2 * (4 + 2 + 1);
+	private static final int MAX_SCHEME_BYTES = 64;
+	private static final int MAX_CENTRE_BYTES = 1024;	//about 2500 digits, far below any usable zoom depth
+	private final List<MandelbrotParam> history;
+	private final int stateIndex;
+	private final IterationTiles iterations;	//the counts of the current state, null if none were saved
+
+	/**
+	 * Creates a session.
+	 * @param history the states from the oldest, at least one.
+	 * @param stateIndex the index of the current state in the history.
+	 */
+	public SessionFile(List<MandelbrotParam> history, int stateIndex) {
+		this(history, stateIndex, null);
+	}
+
+	private SessionFile(List<MandelbrotParam> history, int stateIndex, IterationTiles iterations) {
+		if (history.isEmpty() || stateIndex < 0 || stateIndex >= history.size()) {
+			throw new IllegalArgumentException("state " + stateIndex + " outside a history of " + history.size());
+		}
+		this.history = Collections.unmodifiableList(new ArrayList<MandelbrotParam>(history));
+		this.stateIndex = stateIndex;
+		this.iterations = iterations;
+	}
+
+	public List<MandelbrotParam> getHistory() {
+		return history;
+	}
+
+	public int getStateIndex() {
+		return stateIndex;
+	}
+
+	public MandelbrotParam getCurrent() {
+		return history.get(stateIndex);
+	}
+
+	public boolean hasIterations() {
+		return iterations != null;
+	}
+
+	/**
+	 * @return the saved counts of the current state, still compressed, or null if none were saved.
+	 */
+	IterationTiles getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * check whether a file starts like a session file, without reading the rest of it.
+	 */
+	public static boolean matches(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			while (magic.hasRemaining() && channel.read(magic) >= 0) {
+				//fill the buffer
+			}
+			return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * write the session to a file, replacing it atomically.
+	 * @param path
+	 * @throws IOException
+	 */
+	public void write(Path path) throws IOException {
+		write(path, null, 0, 0);
+	}
+
+	/**
+	 * write the session to a file along with the iteration counts of its current state, replacing it atomically.
+	 * @param path
+	 * @param counts the row-major counts of the current state, or null to save the session alone.
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public void write(Path path, int[] counts, int width, int height) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size());
+		buffer.putInt(MAGIC).putShort(VERSION).putShort(counts != null ? ITERATIONS : 0).putInt(stateIndex).putInt(history.size());
+		for (MandelbrotParam mp : history) {
+			int start = buffer.position();
+			buffer.putInt(0);
+			byte[] scheme = mp.getColorScheme().getBytes(StandardCharsets.US_ASCII);
+			buffer.put((byte) scheme.length).put(scheme);
+			buffer.putInt(mp.getMaxIteration()).putDouble(mp.getRealSpan()).putDouble(mp.getImagSpan());
+			buffer.putDouble(mp.getMinReal()).putDouble(mp.getMaxReal()).putDouble(mp.getMinImag()).putDouble(mp.getMaxImag());
+			putDecimal(buffer, mp.getCentreReal());
+			putDecimal(buffer, mp.getCentreImag());
+			buffer.putInt(start, buffer.position() - start - 4);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+		ByteBuffer[] buffers = {buffer};
+		if (counts != null) {
+			ByteBuffer[] tiles = IterationTiles.encode(counts, width, height);
+			buffers = new ByteBuffer[tiles.length + 1];
+			buffers[0] = buffer;
+			System.arraycopy(tiles, 0, buffers, 1, tiles.length);
+		}
+
+		Path absolute = path.toAbsolutePath();
+		Path temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffers[buffers.length - 1].hasRemaining()) {
+				channel.write(buffers);
+			}
+			channel.force(true);
+		}
+		Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private int size() {
+		int size = HEADER_BYTES + 4;
+		for (MandelbrotParam mp : history) {
+			String scheme = mp.getColorScheme();
+			if (scheme.length() > MAX_SCHEME_BYTES) {
+				throw new IllegalArgumentException("colour scheme name too long: " + scheme);
+			}
+			size += 4 + MIN_RECORD_BYTES - 2 + scheme.length()
+					+ decimalBytes(mp.getCentreReal()) + decimalBytes(mp.getCentreImag());
+		}
+		return size;
+	}
+
+	private static int decimalBytes(BigDecimal value) {
+		int length = value.unscaledValue().toByteArray().length;
+		if (length > MAX_CENTRE_BYTES) {
+			throw new IllegalArgumentException("centre too precise: " + length + " bytes");
+		}
+		return length;
+	}
+
+	private static void putDecimal(ByteBuffer buffer, BigDecimal value) {
+		byte[] unscaled = value.unscaledValue().toByteArray();
+		buffer.putInt(value.scale()).putShort((short) unscaled.length).put(unscaled);
+	}
+
+	/**
+	 * read a session file.
+	 * @param path
+	 * @return the session.
+	 * @throws IOException if the file cannot be read or is not a valid session.
+	 */
+	public static SessionFile read(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES + 4 || size > Integer.MAX_VALUE) {
+				throw corrupt("unexpected size " + size);
+			}
+			//the mapping outlives the channel, the iteration data is only read when it is needed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		if (buffer.getInt() != MAGIC) {
+			throw corrupt("not a session file");
+		}
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw corrupt("unsupported version " + version);
+		}
+		short flags = buffer.getShort();
+		if ((flags & ~ITERATIONS) != 0) {
+			throw corrupt("unsupported flags");
+		}
+
+		int stateIndex = buffer.getInt();
+		int count = buffer.getInt();
+		int limit = buffer.limit() - 4;
+		if (count <= 0 || count > (limit - HEADER_BYTES) / (4 + MIN_RECORD_BYTES) || stateIndex < 0 || stateIndex >= count) {
+			throw corrupt("bad state " + stateIndex + " of " + count);
+		}
+		List<MandelbrotParam> history = new ArrayList<MandelbrotParam>(count);
+		IterationTiles iterations = null;
+		try {
+			for (int i = 0; i < count; i++) {
+				int length = buffer.getInt();
+				if (length < MIN_RECORD_BYTES || length > limit - buffer.position()) {
+					throw corrupt("bad length of state " + i);
+				}
+				int next = buffer.position() + length;
+				history.add(readState(buffer, i));
+				if (buffer.position() != next) {
+					throw corrupt("bad length of state " + i);
+				}
+			}
+			ByteBuffer block = buffer.duplicate();
+			block.flip();
+			CRC32 crc = new CRC32();
+			crc.update(block);
+			if (buffer.getInt() != (int) crc.getValue()) {
+				throw corrupt("checksum mismatch");
+			}
+			if ((flags & ITERATIONS) != 0) {
+				iterations = IterationTiles.read(buffer, history.get(stateIndex));
+			} else if (buffer.hasRemaining()) {
+				throw corrupt("trailing data");
+			}
+		} catch (BufferUnderflowException e) {
+			throw corrupt("truncated");
+		}
+		return new SessionFile(history, stateIndex, iterations);
+	}
+
+	private static MandelbrotParam readState(ByteBuffer buffer, int i) throws IOException {
+		int schemeLength = buffer.get() & 0xff;
+		if (schemeLength == 0 || schemeLength > MAX_SCHEME_BYTES) {
+			throw corrupt("bad colour scheme of state " + i);
+		}
+		byte[] scheme = new byte[schemeLength];
+		buffer.get(scheme);
+		int maxIteration = buffer.getInt();
+		double realSpan = buffer.getDouble();
+		double imagSpan = buffer.getDouble();
+		double minReal = buffer.getDouble();
+		double maxReal = buffer.getDouble();
+		double minImag = buffer.getDouble();
+		double maxImag = buffer.getDouble();
+		if (maxIteration <= 0 || maxIteration > ModelCalculator.MAX_ITERATIONS || !isFinite(realSpan) || !isFinite(imagSpan)
+				|| !isFinite(minReal) || !isFinite(maxReal) || !isFinite(minImag) || !isFinite(maxImag)) {
+			throw corrupt("bad view of state " + i);
+		}
+		BigDecimal centreReal = getDecimal(buffer, i);
+		BigDecimal centreImag = getDecimal(buffer, i);
+		return new MandelbrotParam(centreReal, centreImag, realSpan, imagSpan, minReal, maxReal, minImag, maxImag,
+				new String(scheme, StandardCharsets.US_ASCII), maxIteration);
+	}
+
+	private static boolean isFinite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	private static BigDecimal getDecimal(ByteBuffer buffer, int i) throws IOException {
+		int scale = buffer.getInt();
+		int length = buffer.getShort() & 0xffff;
+		if (length == 0 || length > MAX_CENTRE_BYTES || Math.abs((long) scale) > 4 * MAX_CENTRE_BYTES) {
+			throw corrupt("bad centre of state " + i);
+		}
+		byte[] unscaled = new byte[length];
+		buffer.get(unscaled);
+		return new BigDecimal(new BigInteger(unscaled), scale);
+	}
+
+	private static IOException corrupt(String reason) {
+		return new IOException("corrupt session file: " + reason);
+	}
+}
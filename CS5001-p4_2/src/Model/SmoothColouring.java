@@ -0,0 +1,182 @@
+package Model;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * The SmoothColouring class colours iteration counts by histogram equalisation of a continuous iteration count.
+ * The linear palettes of ModelCalculator.calculateColor map count / maxIteration to the colour scheme, so at high max iteration
+ * numbers most pixels share a thin band of it. Here a pixel is coloured by the share of the pixels outside the set whose count
+ * is lower than its own, so the whole scheme is spread over the counts the view actually has, whatever the max iteration number.
+ * The count of an escaped pixel is made continuous with the modulus of its orbit, see MandelbrotCalculator.calcModuli:
+ * with n the count and |Z|^2 the modulus after the smoothing iterations, the continuous count
+ * 		s = n + SMOOTHING_ITERATIONS + 1 - log2(ln |Z|^2 / ln radiusSquared)
+ * lies in (n - 1, n], and the share is interpolated between the cumulative shares of n - 1 and n, so the colour has no bands.
+ * Without moduli, or where a modulus is NaN, the whole count is used.
+ * The histogram is built by a fork-join reduction: every leaf task counts its rows into its own histogram,
+ * and the histograms are added up as the tasks join, so the workers share no counter. The pixels are then coloured in a second
+ * parallel pass. Pixels inside the set are black, as with the linear palettes.
+ * @author 170024030
+ *
+ */
+public final class SmoothColouring {
+	//the number of colours the share of a pixel is rounded to
+	static final int TABLE_SIZE = 4096;
+	private static final double LOG_2 = Math.log(2);
+
+	private SmoothColouring() {
+	}
+
+	/**
+	 * counts the iteration counts of a range of rows into a histogram of their own, splitting the range while it is long.
+	 */
+	private static final class HistogramTask extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final int[] counts;
+		private final int width;
+		private final int maxIteration;
+		private final int fromRow;	//inclusive
+		private final int toRow;	//exclusive
+		private final int leafRows;
+
+		HistogramTask(int[] counts, int width, int maxIteration, int fromRow, int toRow, int leafRows) {
+			this.counts = counts;
+			this.width = width;
+			this.maxIteration = maxIteration;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.leafRows = leafRows;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (toRow - fromRow <= leafRows) {
+				int[] histogram = new int[maxIteration + 1];
+				for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+					histogram[Math.min(Math.max(counts[i], 0), maxIteration)]++;
+				}
+				return histogram;
+			}
+			int middle = (fromRow + toRow) >>> 1;
+			HistogramTask top = new HistogramTask(counts, width, maxIteration, fromRow, middle, leafRows);
+			top.fork();
+			int[] histogram = new HistogramTask(counts, width, maxIteration, middle, toRow, leafRows).compute();
+			int[] other = top.join();
+			for (int k = 0; k <= maxIteration; k++) {
+				histogram[k] += other[k];
+			}
+			return histogram;
+		}
+	}
+
+	/**
+	 * build the histogram of the iteration counts of a view.
+	 * The rows are cut into about two ranges per worker, so the histograms allocated stay few even at large max iteration numbers.
+	 * @return the number of pixels of every count from 0 to maxIteration.
+	 */
+	static int[] histogram(int[] counts, int width, int height, int maxIteration) {
+		int leafRows = Math.max(1, height / (2 * ForkJoinPool.getCommonPoolParallelism()));
+		return ForkJoinPool.commonPool().invoke(new HistogramTask(counts, width, maxIteration, 0, height, leafRows));
+	}
+
+	/**
+	 * the cumulative distribution of the counts of the pixels outside the set.
+	 * @return the share of those pixels whose count is at most k, at index k, 0 if there are none.
+	 */
+	static double[] cumulativeShares(int[] histogram) {
+		int maxIteration = histogram.length - 1;
+		long outside = 0;
+		for (int k = 0; k < maxIteration; k++) {
+			outside += histogram[k];
+		}
+		double[] shares = new double[maxIteration + 1];
+		long seen = 0;
+		for (int k = 0; k < maxIteration; k++) {
+			seen += histogram[k];
+			shares[k] = outside == 0 ? 0 : (double) seen / outside;
+		}
+		shares[maxIteration] = 1;
+		return shares;
+	}
+
+	/**
+	 * the continuous iteration count of an escaped pixel.
+	 * @param count the iteration count.
+	 * @param modulusSquared the square of the absolute value of its last Z, NaN if unknown.
+	 * @param radiusSquared the escape radius squared of the render.
+	 * @return a value in [count - 1, count], count itself if the modulus is unknown.
+	 */
+	static double continuousCount(int count, double modulusSquared, double radiusSquared) {
+		if (!(modulusSquared > radiusSquared)) {
+			return count;
+		}
+		double s = count + MandelbrotCalculator.SMOOTHING_ITERATIONS + 1
+				- Math.log(Math.log(modulusSquared) / Math.log(radiusSquared)) / LOG_2;
+		return Math.max(count - 1, Math.min(s, count));
+	}
+
+	/**
+	 * the palette of whole iteration counts equalised over a view, e.g. to colour the tiles of a render in progress.
+	 * @param counts the row-major iteration counts of the view.
+	 * @param width
+	 * @param height
+	 * @param mp the state giving the colour scheme and max iteration number.
+	 * @return an array of maxIteration + 1 RGB values indexed by iteration count.
+	 */
+	public static int[] equalisedPalette(int[] counts, int width, int height, MandelbrotParam mp) {
+		int maxIteration = mp.getMaxIteration();
+		double[] shares = cumulativeShares(histogram(counts, width, height, maxIteration));
+		int[] table = Palette.lookup(mp.getColorScheme(), TABLE_SIZE);
+		int[] palette = new int[maxIteration + 1];
+		for (int k = 0; k < maxIteration; k++) {
+			palette[k] = table[index(shares[k])];
+		}
+		palette[maxIteration] = table[TABLE_SIZE];
+		return palette;
+	}
+
+	/**
+	 * colour the iteration counts of a view by histogram equalisation, with the rows shared out between the fork-join workers.
+	 * @param counts the row-major iteration counts.
+	 * @param moduli the squares of the final absolute values of Z computed by MandelbrotCalculator.calcModuli, null to use the whole counts.
+	 * @param pixels the row-major array receiving the RGB values, e.g. the raster of a TYPE_INT_RGB image.
+	 * @param width
+	 * @param height
+	 * @param mp the state giving the colour scheme and max iteration number.
+	 */
+	public static void colour(final int[] counts, final double[] moduli, final int[] pixels, final int width, int height, MandelbrotParam mp) {
+		if (moduli == null) {
+			final int[] palette = equalisedPalette(counts, width, height, mp);
+			IntStream.range(0, height).parallel().forEach(y -> {
+				for (int i = y * width, end = i + width; i < end; i++) {
+					pixels[i] = palette[counts[i]];
+				}
+			});
+			return;
+		}
+		final int maxIteration = mp.getMaxIteration();
+		final double[] shares = cumulativeShares(histogram(counts, width, height, maxIteration));
+		final int[] table = Palette.lookup(mp.getColorScheme(), TABLE_SIZE);
+		final double radiusSquared = MandelbrotCalculator.DEFAULT_RADIUS_SQUARED;
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int i = y * width, end = i + width; i < end; i++) {
+				int count = counts[i];
+				if (count >= maxIteration) {
+					pixels[i] = table[TABLE_SIZE];
+					continue;
+				}
+				double s = continuousCount(count, moduli[i], radiusSquared);
+				double below = count > 0 ? shares[count - 1] : 0;
+				pixels[i] = table[index(below + (s - (count - 1)) * (shares[count] - below))];
+			}
+		});
+	}
+
+	/**
+	 * the index in the colour table of a share, keeping the last entry for the pixels inside the set.
+	 */
+	private static int index(double share) {
+		return Math.max(0, Math.min((int) (share * TABLE_SIZE), TABLE_SIZE - 1));
+	}
+}
@@ -0,0 +1,346 @@
+package Model;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The TileRenderTask class computes a range of tiles of the Mandelbrot set on a fork-join pool.
+ * The tiles are numbered in row-major order over the tile grid. A task covering more than one tile splits its range in half,
+ * so idle workers can steal the untouched half while a busy worker is still iterating an expensive tile.
+ * @author 170024030
+ *
+ */
+class TileRenderTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	//the tile buffer of each worker thread when the job has no output array
+	private static final ThreadLocal<int[]> SCRATCH = new ThreadLocal<int[]>();
+	//rectangles with a side this short are computed pixel by pixel instead of being cut again
+	private static final int MIN_SUBDIVIDED_SIDE = 4;
+	//about the iterations the periodicity check of calcMandelOptimised takes to stop an orbit inside the set, for the AUTO kernel
+	private static final int PERIOD_DETECTION_ITERATIONS = 512;
+	private final Job job;
+	private final int fromTile;	//first tile of this task, inclusive
+	private final int toTile;	//last tile of this task, exclusive
+	private long computedPixels;	//the pixels of the tile of this task computed so far, for RenderMetrics
+	private long iterationSum;	//the sum of their iteration counts
+	private boolean lanesAhead = true;	//whether the AUTO kernel gives the next row to the LaneKernel
+
+	/**
+	 * The parameters shared by every task of one render.
+	 */
+	static final class Job {
+		final MandelbrotCalculator calculator;
+		final int[] output;	//the row-major output array, null to compute into per-thread scratch tiles
+		final int outputOffset;	//the index of pixel (0, 0) in output
+		final int xResolution;
+		final int yResolution;
+		final int tileSize;
+		final int tilesPerRow;
+		final double minReal;
+		final double minImaginary;
+		final double realStep;
+		final double imaginaryStep;
+		final int maxIterations;
+		final double radiusSquared;
+		final int step;	//only every step-th pixel is computed and copied over its step x step block
+		final MandelbrotCalculator.Strategy strategy;
+		final boolean lanes;	//whether full rows go through the LaneKernel
+		final boolean adaptive;	//whether each row picks the LaneKernel or the single pixel kernel from the last row, for AUTO
+		final MandelbrotSink sink;	//may be null
+		final BooleanSupplier cancelled;	//may be null
+		final PixelFunction pixels;	//computes the pixels instead of the calculator's kernel, may be null
+		final double[] moduli;	//receives the smoothed modulus of every computed pixel at the index of its value less outputOffset, may be null
+
+		Job(MandelbrotCalculator calculator, int[] output, int outputOffset, int xResolution, int yResolution, int tileSize,
+				double minReal, double minImaginary, double realStep, double imaginaryStep, int maxIterations, double radiusSquared,
+				int step, MandelbrotSink sink, BooleanSupplier cancelled, PixelFunction pixels) {
+			this(calculator, output, outputOffset, xResolution, yResolution, tileSize, minReal, minImaginary, realStep, imaginaryStep,
+					maxIterations, radiusSquared, step, sink, cancelled, pixels, null);
+		}
+
+		Job(MandelbrotCalculator calculator, int[] output, int outputOffset, int xResolution, int yResolution, int tileSize,
+				double minReal, double minImaginary, double realStep, double imaginaryStep, int maxIterations, double radiusSquared,
+				int step, MandelbrotSink sink, BooleanSupplier cancelled, PixelFunction pixels, double[] moduli) {
+			if (moduli != null && output == null) {
+				throw new IllegalArgumentException("moduli need an output array");
+			}
+			this.calculator = calculator;
+			this.output = output;
+			this.outputOffset = outputOffset;
+			this.xResolution = xResolution;
+			this.yResolution = yResolution;
+			this.tileSize = tileSize;
+			this.tilesPerRow = tileCount(xResolution, tileSize);
+			this.minReal = minReal;
+			this.minImaginary = minImaginary;
+			this.realStep = realStep;
+			this.imaginaryStep = imaginaryStep;
+			this.maxIterations = maxIterations;
+			this.radiusSquared = radiusSquared;
+			this.step = step;
+			//smooth colouring needs the modulus of every pixel, so none is filled in
+			this.strategy = moduli != null ? MandelbrotCalculator.Strategy.BRUTE_FORCE : calculator.getStrategy();
+			this.lanes = pixels == null && (calculator.getKernel() == MandelbrotCalculator.Kernel.LANES
+					|| calculator.getKernel() == MandelbrotCalculator.Kernel.AUTO);
+			this.adaptive = calculator.getKernel() == MandelbrotCalculator.Kernel.AUTO;
+			this.sink = sink;
+			this.cancelled = cancelled;
+			this.pixels = pixels;
+			this.moduli = moduli;
+		}
+
+		int tileTotal() {
+			return tilesPerRow * tileCount(yResolution, tileSize);
+		}
+
+		boolean isCancelled() {
+			return cancelled != null && cancelled.getAsBoolean();
+		}
+	}
+
+	/**
+	 * Creates the root task covering every tile of the viewport.
+	 */
+	TileRenderTask(Job job) {
+		this(job, 0, job.tileTotal());
+	}
+
+	private TileRenderTask(Job job, int fromTile, int toTile) {
+		this.job = job;
+		this.fromTile = fromTile;
+		this.toTile = toTile;
+	}
+
+	/**
+	 * the number of tiles needed to cover the given number of pixels.
+	 */
+	static int tileCount(int pixels, int tileSize) {
+		return (pixels + tileSize - 1) / tileSize;
+	}
+
+	@Override
+	protected void compute() {
+		if (toTile - fromTile <= 1) {
+			if (toTile > fromTile && !job.isCancelled()) {
+				long start = System.nanoTime();
+				computeTile(fromTile);
+				RenderMetrics.global().tileComputed(System.nanoTime() - start, computedPixels, iterationSum);
+			}
+			return;
+		}
+		int middle = (fromTile + toTile) >>> 1;
+		invokeAll(new TileRenderTask(job, fromTile, middle), new TileRenderTask(job, middle, toTile));
+	}
+
+	/**
+	 * computes every pixel of one tile, using the same coordinate formula as the sequential loop.
+	 * The values go to the output array of the job, or to the scratch buffer of the thread when there is none.
+	 * A cancelled render stops at the next row and does not report the tile.
+	 */
+	private void computeTile(int tile) {
+		int x0 = (tile % job.tilesPerRow) * job.tileSize;
+		int y0 = (tile / job.tilesPerRow) * job.tileSize;
+		int x1 = Math.min(x0 + job.tileSize, job.xResolution);
+		int y1 = Math.min(y0 + job.tileSize, job.yResolution);
+		int[] values;
+		int origin;	//the index of pixel (0, 0) in values, may be negative for a scratch tile
+		int scanline;
+		if (job.output != null) {
+			values = job.output;
+			origin = job.outputOffset;
+			scanline = job.xResolution;
+		} else {
+			values = scratch(job.tileSize * job.tileSize);
+			scanline = x1 - x0;
+			origin = -(y0 * scanline + x0);
+		}
+		int step = job.step;
+		if (step == 1 && job.strategy == MandelbrotCalculator.Strategy.MARIANI_SILVER) {
+			if (!subdivideTile(values, origin, scanline, x0, y0, x1 - 1, y1 - 1)) {
+				return;
+			}
+			step = 0;	//the tile is complete
+		} else if (step == 1 && job.lanes) {
+			for (int y = y0; y < y1; y++) {
+				if (job.isCancelled()) {
+					return;
+				}
+				computeRow(values, origin, scanline, y, x0, x1 - 1);
+			}
+			step = 0;
+		}
+		//blocks are aligned to the whole image, so a block cut by a tile edge is computed by both tiles with the same result
+		for (int by = y0 - y0 % Math.max(step, 1); step > 0 && by < y1; by += step) {
+			if (job.isCancelled()) {
+				return;
+			}
+			double cImaginary = job.minImaginary + by * job.imaginaryStep;
+			int rowFrom = Math.max(by, y0);
+			int rowTo = Math.min(by + step, y1);
+			for (int bx = x0 - x0 % step; bx < x1; bx += step) {
+				double cReal = job.minReal + bx * job.realStep;
+				int value = valueAt(bx, by, cReal, cImaginary);
+				int colFrom = Math.max(bx, x0);
+				int colTo = Math.min(bx + step, x1);
+				for (int y = rowFrom; y < rowTo; y++) {
+					int rowStart = origin + y * scanline;
+					for (int x = colFrom; x < colTo; x++) {
+						values[rowStart + x] = value;
+					}
+				}
+			}
+		}
+		if (job.sink != null) {
+			job.sink.tileComputed(x0, y0, x1 - x0, y1 - y0, values, origin + y0 * scanline + x0, scanline);
+		}
+	}
+
+	/**
+	 * the Mariani-Silver fill of one tile: its border is computed, then the inside is filled by fillInside.
+	 * The corners are inclusive.
+	 * @return false if the render was cancelled.
+	 */
+	private boolean subdivideTile(int[] values, int origin, int scanline, int xa, int ya, int xb, int yb) {
+		computeRow(values, origin, scanline, ya, xa, xb);
+		if (yb > ya) {
+			computeRow(values, origin, scanline, yb, xa, xb);
+		}
+		computeColumn(values, origin, scanline, xa, ya + 1, yb - 1);
+		if (xb > xa) {
+			computeColumn(values, origin, scanline, xb, ya + 1, yb - 1);
+		}
+		return fillInside(values, origin, scanline, xa, ya, xb, yb);
+	}
+
+	/**
+	 * fills the inside of a rectangle whose border pixels are already computed.
+	 * Because the Mandelbrot set is connected, a border with a single iteration count below maxIterations encloses only that count,
+	 * so the inside is flood-filled without computing it. A border inside the set is not enough: channels of escaping pixels
+	 * thinner than a pixel cross it between two samples, so such rectangles are cut down like the others and the result is the
+	 * same as the brute-force render. Otherwise the rectangle is cut in four by a computed middle row and column,
+	 * down to rectangles small enough to be computed pixel by pixel.
+	 * @return false if the render was cancelled.
+	 */
+	private boolean fillInside(int[] values, int origin, int scanline, int xa, int ya, int xb, int yb) {
+		if (xb - xa < 2 || yb - ya < 2) {
+			return true;	//no inside
+		}
+		if (job.isCancelled()) {
+			return false;
+		}
+		int value = values[origin + ya * scanline + xa];
+		if (value < job.maxIterations && isUniformBorder(values, origin, scanline, xa, ya, xb, yb, value)) {
+			for (int y = ya + 1; y < yb; y++) {
+				int rowStart = origin + y * scanline;
+				for (int x = xa + 1; x < xb; x++) {
+					values[rowStart + x] = value;
+				}
+			}
+			return true;
+		}
+		if (xb - xa <= MIN_SUBDIVIDED_SIDE || yb - ya <= MIN_SUBDIVIDED_SIDE) {
+			for (int y = ya + 1; y < yb; y++) {
+				computeRow(values, origin, scanline, y, xa + 1, xb - 1);
+			}
+			return true;
+		}
+		int xm = (xa + xb) >>> 1;
+		int ym = (ya + yb) >>> 1;
+		computeRow(values, origin, scanline, ym, xa + 1, xb - 1);
+		computeColumn(values, origin, scanline, xm, ya + 1, ym - 1);
+		computeColumn(values, origin, scanline, xm, ym + 1, yb - 1);
+		return fillInside(values, origin, scanline, xa, ya, xm, ym)
+				&& fillInside(values, origin, scanline, xm, ya, xb, ym)
+				&& fillInside(values, origin, scanline, xa, ym, xm, yb)
+				&& fillInside(values, origin, scanline, xm, ym, xb, yb);
+	}
+
+	private static boolean isUniformBorder(int[] values, int origin, int scanline, int xa, int ya, int xb, int yb, int value) {
+		int top = origin + ya * scanline;
+		int bottom = origin + yb * scanline;
+		for (int x = xa; x <= xb; x++) {
+			if (values[top + x] != value || values[bottom + x] != value) {
+				return false;
+			}
+		}
+		for (int y = ya + 1; y < yb; y++) {
+			int rowStart = origin + y * scanline;
+			if (values[rowStart + xa] != value || values[rowStart + xb] != value) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * computes the pixels xFrom to xTo (inclusive) of row y.
+	 * With the AUTO kernel, the next rows are like this one, so the kernel of the next row is picked from the work of this one.
+	 * The LaneKernel iterates about twice as fast, but it iterates the pixels inside the set up to maxIterations, unless
+	 * the cardioid and bulb test answers them, where the periodicity check of the single pixel kernel stops after about
+	 * PERIOD_DETECTION_ITERATIONS. So the LaneKernel is used unless it would take longer on the pixels of this row.
+	 */
+	private void computeRow(int[] values, int origin, int scanline, int y, int xFrom, int xTo) {
+		double cImaginary = job.minImaginary + y * job.imaginaryStep;
+		int rowStart = origin + y * scanline;
+		if (job.lanes && lanesAhead) {
+			LaneKernel.calcMandelRow(values, rowStart, xFrom, xTo - xFrom + 1, job.minReal, job.realStep, cImaginary,
+					job.maxIterations, job.radiusSquared, job.moduli, rowStart - job.outputOffset);
+			for (int x = xFrom; x <= xTo; x++) {
+				iterationSum += values[rowStart + x];
+			}
+			computedPixels += xTo - xFrom + 1;
+		} else {
+			for (int x = xFrom; x <= xTo; x++) {
+				double cReal = job.minReal + x * job.realStep;
+				values[rowStart + x] = valueAt(x, y, cReal, cImaginary);
+			}
+		}
+		if (job.adaptive && job.maxIterations > 2 * PERIOD_DETECTION_ITERATIONS) {
+			long exteriorWork = 0;
+			long interiorPixels = 0;
+			for (int x = xFrom; x <= xTo; x++) {
+				int value = values[rowStart + x];
+				if (value < job.maxIterations) {
+					exteriorWork += value;
+				} else if (!MandelbrotCalculator.isInCardioidOrBulb(job.minReal + x * job.realStep, cImaginary)) {
+					interiorPixels++;
+				}
+			}
+			//lanes take (exterior + interior * maxIterations) / 2, the single pixel kernel exterior + interior * detection
+			lanesAhead = interiorPixels * (job.maxIterations - 2L * PERIOD_DETECTION_ITERATIONS) <= exteriorWork;
+		}
+	}
+
+	/**
+	 * computes the pixels yFrom to yTo (inclusive) of column x.
+	 */
+	private void computeColumn(int[] values, int origin, int scanline, int x, int yFrom, int yTo) {
+		double cReal = job.minReal + x * job.realStep;
+		for (int y = yFrom; y <= yTo; y++) {
+			double cImaginary = job.minImaginary + y * job.imaginaryStep;
+			values[origin + y * scanline + x] = valueAt(x, y, cReal, cImaginary);
+		}
+	}
+
+	/**
+	 * the iteration count of pixel (x, y), whose coordinates are C = cReal + i * cImaginary.
+	 */
+	private int valueAt(int x, int y, double cReal, double cImaginary) {
+		int value = job.pixels != null ? job.pixels.valueAt(x, y)
+				: job.moduli != null ? job.calculator.calcMandel(cReal, cImaginary, job.maxIterations, job.radiusSquared,
+						job.moduli, y * job.xResolution + x)
+				: job.calculator.escapeTime(cReal, cImaginary, job.maxIterations, job.radiusSquared);
+		computedPixels++;
+		iterationSum += value;
+		return value;
+	}
+
+	private static int[] scratch(int size) {
+		int[] buffer = SCRATCH.get();
+		if (buffer == null || buffer.length < size) {
+			buffer = new int[size];
+			SCRATCH.set(buffer);
+		}
+		return buffer;
+	}
+}
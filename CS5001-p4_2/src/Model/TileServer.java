@@ -0,0 +1,319 @@
+package Model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The TileServer class serves the Mandelbrot set as a slippy map: 256x256 PNG tiles at /z/x/y.png, for any web map viewer.
+ * Zoom level z covers the square of side 4 centred on -0.5 with 2^z by 2^z tiles; x runs along the real axis and y along the
+ * imaginary axis, in the same direction as the rows of the images of ModelCalculator.
+ * A tile is looked up in an in-memory least-recently-used cache of encoded PNGs, then in a tile store on disk, and is only rendered
+ * if both miss. Renders run on a bounded pool of workers sharing one tile engine, and concurrent requests for a tile that is being
+ * loaded or rendered wait for that one job instead of starting their own. Requests beyond the capacity of the render queue get 503.
+ * / serves a minimal Leaflet page and /stats the cache counters.
+ * 	example usage:
+ * 		java Model.TileServer -port 8080 -iterations 1000 -palette Rainbow -cache 256 -dir tiles
+ * @author 170024030
+ *
+ */
+public class TileServer {
+	private static final String USAGE = "usage: java Model.TileServer [-port N] [-iterations N] [-palette NAME] [-threads N] [-cache MEGABYTES] [-dir DIRECTORY]";
+	public static final int TILE_SIZE = 256;
+	//the deepest zoom level, where the pixel spacing is still within reach of the double-double engine
+	public static final int MAX_ZOOM = 48;
+	private static final BigDecimal WORLD_MIN_REAL = new BigDecimal("-2.5");
+	private static final BigDecimal WORLD_MIN_IMAGINARY = new BigDecimal("-2");
+	private static final double WORLD_SPAN = 4;
+	//the number of renders that may wait for a worker before requests are turned away
+	private static final int RENDER_QUEUE = 1024;
+	private static final long RENDER_TIMEOUT_SECONDS = 60;
+	private int port = 8080;
+	private int maxIteration = 500;
+	private String colorScheme = "Rainbow";
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long cacheBytes = 128L * 1024 * 1024;
+	private File directory = new File("tiles");
+
+	private ViewRenderer renderer;
+	private ThreadPoolExecutor renderPool;
+	private PngCache memory;
+	private final ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong renders = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong renderNanos = new AtomicLong();
+
+	/**
+	 * The encoded tiles kept in memory, evicted least recently used once their total size exceeds the budget.
+	 */
+	private static final class PngCache {
+		private final long budget;
+		private long bytes;
+		private final LinkedHashMap<String, byte[]> tiles = new LinkedHashMap<String, byte[]>(1024, 0.75f, true);
+
+		PngCache(long budget) {
+			this.budget = budget;
+		}
+
+		synchronized byte[] get(String key) {
+			return tiles.get(key);
+		}
+
+		synchronized void put(String key, byte[] png) {
+			byte[] old = tiles.put(key, png);
+			bytes += png.length - (old == null ? 0 : old.length);
+			Iterator<byte[]> eldest = tiles.values().iterator();
+			while (bytes > budget && eldest.hasNext()) {
+				bytes -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+
+		synchronized int size() {
+			return tiles.size();
+		}
+
+		synchronized long getBytes() {
+			return bytes;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		TileServer server = new TileServer();
+		try {
+			server.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		server.start();
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("missing value for " + args[i]);
+			}
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-port":
+				port = BatchRenderer.positive(args[i], value);
+				break;
+			case "-iterations":
+				maxIteration = BatchRenderer.positive(args[i], value);
+				break;
+			case "-palette":
+				colorScheme = BatchRenderer.colorScheme(value);
+				break;
+			case "-threads":
+				threads = BatchRenderer.positive(args[i], value);
+				break;
+			case "-cache":
+				cacheBytes = BatchRenderer.positive(args[i], value) * 1024L * 1024;
+				break;
+			case "-dir":
+				directory = new File(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+	}
+
+	/**
+	 * start serving tiles. The server runs until the process is stopped.
+	 * @throws IOException if the port cannot be bound.
+	 */
+	public void start() throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		ImageIO.setUseCache(false);
+		renderer = new ViewRenderer(new MandelbrotCalculator(MandelbrotCalculator.DEFAULT_TILE_SIZE, threads));
+		renderPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(RENDER_QUEUE));
+		memory = new PngCache(cacheBytes);
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		//tiles found in memory are answered straight away, so the request threads mostly wait on sockets and renders
+		server.setExecutor(Executors.newFixedThreadPool(Math.max(16, threads * 4)));
+		server.start();
+		System.out.printf("serving %s tiles at %d iterations on http://localhost:%d/ from %s%n", colorScheme, maxIteration, port, directory);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		if (path.equals("/")) {
+			respond(exchange, 200, "text/html; charset=utf-8", page().getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		if (path.equals("/stats")) {
+			respond(exchange, 200, "text/plain; charset=utf-8", stats().getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		String[] parts = path.split("/");
+		long z, x, y;
+		try {
+			if (parts.length != 4 || !parts[3].endsWith(".png")) {
+				throw new NumberFormatException();
+			}
+			z = Long.parseLong(parts[1]);
+			x = Long.parseLong(parts[2]);
+			y = Long.parseLong(parts[3].substring(0, parts[3].length() - 4));
+		} catch (NumberFormatException e) {
+			respond(exchange, 404, "text/plain", "not found".getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+		if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= 1L << z || y >= 1L << z) {
+			respond(exchange, 404, "text/plain", "no such tile".getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+		try {
+			byte[] png = tile((int) z, x, y).get(RENDER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			exchange.getResponseHeaders().set("Cache-Control", "public, max-age=86400");
+			respond(exchange, 200, "image/png", png);
+		} catch (RejectedExecutionException e) {
+			respond(exchange, 503, "text/plain", "busy".getBytes(StandardCharsets.US_ASCII));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(exchange, 503, "text/plain", "shutting down".getBytes(StandardCharsets.US_ASCII));
+		} catch (TimeoutException e) {
+			//the render goes on and is cached, so a retry is likely to be answered from memory
+			respond(exchange, 503, "text/plain", ("tile not rendered within " + RENDER_TIMEOUT_SECONDS + " seconds")
+					.getBytes(StandardCharsets.US_ASCII));
+		} catch (ExecutionException e) {
+			respond(exchange, 500, "text/plain", String.valueOf(e.getCause()).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * get the encoded PNG of a tile from memory, or the job loading or rendering it, which is shared by every concurrent request.
+	 * @throws RejectedExecutionException if the render queue is full.
+	 */
+	CompletableFuture<byte[]> tile(final int z, final long x, final long y) {
+		requests.incrementAndGet();
+		final String key = z + "/" + x + "/" + y;
+		byte[] png = memory.get(key);
+		if (png != null) {
+			memoryHits.incrementAndGet();
+			return CompletableFuture.completedFuture(png);
+		}
+		final boolean[] created = new boolean[1];
+		CompletableFuture<byte[]> job = inFlight.computeIfAbsent(key, k -> {
+			created[0] = true;
+			return CompletableFuture.supplyAsync(() -> load(z, x, y, k), renderPool);
+		});
+		if (!created[0]) {
+			coalesced.incrementAndGet();
+			return job;
+		}
+		job.whenComplete((result, failure) -> {
+			if (result != null) {
+				memory.put(key, result);
+			}
+			inFlight.remove(key, job);
+		});
+		return job;
+	}
+
+	/**
+	 * read a tile from the disk store, or render and store it. Runs on a render worker.
+	 */
+	private byte[] load(int z, long x, long y, String key) {
+		Path file = directory.toPath().resolve(colorScheme + "-" + maxIteration).resolve(key + ".png");
+		try {
+			if (Files.isRegularFile(file)) {
+				diskHits.incrementAndGet();
+				return Files.readAllBytes(file);
+			}
+			long start = System.nanoTime();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+			ImageIO.write(renderer.render(view(z, x, y), TILE_SIZE, TILE_SIZE), "PNG", out);
+			byte[] png = out.toByteArray();
+			renders.incrementAndGet();
+			renderNanos.addAndGet(System.nanoTime() - start);
+			//written through a temporary file so that a reader never sees half a tile
+			Files.createDirectories(file.getParent());
+			Path temporary = Files.createTempFile(file.getParent(), "tile", ".tmp");
+			Files.write(temporary, png);
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return png;
+		} catch (IOException e) {
+			throw new IllegalStateException("tile " + key + ": " + e, e);
+		}
+	}
+
+	/**
+	 * the view of a tile, whose centre is exact at any zoom level.
+	 */
+	MandelbrotParam view(int z, long x, long y) {
+		BigDecimal span = BigDecimal.valueOf(WORLD_SPAN).divide(new BigDecimal(1L << z));
+		BigDecimal half = span.divide(BigDecimal.valueOf(2));
+		BigDecimal centreReal = WORLD_MIN_REAL.add(span.multiply(BigDecimal.valueOf(x))).add(half);
+		BigDecimal centreImag = WORLD_MIN_IMAGINARY.add(span.multiply(BigDecimal.valueOf(y))).add(half);
+		return new MandelbrotParam(centreReal, centreImag, span.doubleValue(), span.doubleValue(), colorScheme, maxIteration);
+	}
+
+	private String stats() {
+		long rendered = renders.get();
+		return String.format("requests %d%nmemory hits %d%ndisk hits %d%nrenders %d (%.1f ms each)%ncoalesced %d%n"
+				+ "memory tiles %d (%d bytes)%nqueued renders %d%n",
+				requests.get(), memoryHits.get(), diskHits.get(), rendered, rendered == 0 ? 0 : renderNanos.get() / 1e6 / rendered,
+				coalesced.get(), memory.size(), memory.getBytes(), renderPool.getQueue().size());
+	}
+
+	private static String page() {
+		return "<!DOCTYPE html><html><head><title>Mandelbrot Set Explorer</title>"
+				+ "<link rel=\"stylesheet\" href=\"https://unpkg.com/leaflet@1.9.4/dist/leaflet.css\"/>"
+				+ "<script src=\"https://unpkg.com/leaflet@1.9.4/dist/leaflet.js\"></script>"
+				+ "<style>html,body,#map{height:100%;margin:0}</style></head><body><div id=\"map\"></div><script>"
+				+ "var map = L.map('map', {crs: L.CRS.Simple, minZoom: 0, maxZoom: " + MAX_ZOOM + "});"
+				+ "L.tileLayer('/{z}/{x}/{y}.png', {tileSize: " + TILE_SIZE + ", noWrap: true, maxZoom: " + MAX_ZOOM
+				+ ", bounds: [[0, 0], [-" + TILE_SIZE + ", " + TILE_SIZE + "]]}).addTo(map);"
+				+ "map.setView([-" + TILE_SIZE / 2 + ", " + TILE_SIZE / 2 + "], 1);"
+				+ "</script></body></html>";
+	}
+}
@@ -0,0 +1,195 @@
+package Model;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * The ViewRenderer class computes a view with the engine its depth requires and colours it, without any user interface.
+ * The double precision tile engine is used down to a pixel spacing of about 1e-15, the double-double engine down to about 1e-30,
+ * and the perturbation engine beyond. All three schedule their pixels on the same tile engine, so several views rendered at once,
+ * e.g. by a batch of jobs, share one fork-join pool. All methods are thread-safe.
+ * 	example usage:
+ * 		BufferedImage image = new ViewRenderer(new MandelbrotCalculator()).render(mp, 1920, 1080);
+ * @author 170024030
+ *
+ */
+public class ViewRenderer {
+	private final MandelbrotCalculator tileEngine;
+	private final DoubleDoubleCalculator doubleDouble;
+	private final PerturbationCalculator perturbation;
+
+	/**
+	 * Creates a renderer scheduling every engine on the given tile engine.
+	 * @param tileEngine
+	 */
+	public ViewRenderer(MandelbrotCalculator tileEngine) {
+		this.tileEngine = tileEngine;
+		this.doubleDouble = new DoubleDoubleCalculator(tileEngine);
+		this.perturbation = new PerturbationCalculator(tileEngine);
+	}
+
+	public MandelbrotCalculator getTileEngine() {
+		return tileEngine;
+	}
+
+	/**
+	 * compute the iteration counts of a view with the engine its depth requires.
+	 * @param mandelbrotData the array receiving the value of pixel (x, y) at index y * xResolution + x.
+	 * @param xResolution
+	 * @param yResolution
+	 * @param mp the view, iteration count included.
+	 * @param step the side length of the blocks sampled by one computed pixel, 1 for a full render.
+	 * @param sink notified as tiles are finished, may be null.
+	 * @param cancelled polled to abandon the render, may be null.
+	 * @see Precision#select(MandelbrotParam, int, int)
+	 */
+	public void calculate(int[] mandelbrotData, int xResolution, int yResolution, MandelbrotParam mp, int step,
+			MandelbrotSink sink, BooleanSupplier cancelled) {
+		switch (Precision.select(mp, xResolution, yResolution)) {
+		case PERTURBATION:
+			perturbation.calcMandelbrotSet(mandelbrotData, xResolution, yResolution, mp,
+					MandelbrotCalculator.DEFAULT_RADIUS_SQUARED, step, sink, cancelled);
+			return;
+		case DOUBLE_DOUBLE:
+			doubleDouble.calcMandelbrotSet(mandelbrotData, xResolution, yResolution, mp,
+					MandelbrotCalculator.DEFAULT_RADIUS_SQUARED, step, sink, cancelled);
+			return;
+		default:
+			tileEngine.calcMandelbrotSet(mandelbrotData, xResolution, yResolution,
+					mp.getMinReal(),
+					mp.getMaxReal(),
+					mp.getMinImag(),
+					mp.getMaxImag(),
+					mp.getMaxIteration(),
+					MandelbrotCalculator.DEFAULT_RADIUS_SQUARED,
+					step,
+					sink,
+					cancelled);
+		}
+	}
+
+	/**
+	 * compute the iteration counts at points of a view given in pixel coordinates, which need not be whole,
+	 * e.g. the jittered samples of an antialiased render, with the engine its depth requires.
+	 * Point k is at pixel (xs[k], ys[k]), where pixel (x, y) of a render is at (x, y).
+	 * @param counts the array receiving the count of point k at index k.
+	 * @param xResolution
+	 * @param yResolution
+	 * @param mp the view, iteration count included.
+	 * @param xs
+	 * @param ys
+	 * @param cancelled polled to abandon the samples, may be null.
+	 */
+	public void sample(int[] counts, int xResolution, int yResolution, MandelbrotParam mp, double[] xs, double[] ys,
+			BooleanSupplier cancelled) {
+		switch (Precision.select(mp, xResolution, yResolution)) {
+		case PERTURBATION:
+			perturbation.sample(counts, xResolution, yResolution, mp, xs, ys, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED, cancelled);
+			return;
+		case DOUBLE_DOUBLE:
+			doubleDouble.sample(counts, xResolution, yResolution, mp, xs, ys, MandelbrotCalculator.DEFAULT_RADIUS_SQUARED, cancelled);
+			return;
+		default:
+			tileEngine.sample(counts, xResolution, yResolution,
+					mp.getMinReal(),
+					mp.getMaxReal(),
+					mp.getMinImag(),
+					mp.getMaxImag(),
+					mp.getMaxIteration(),
+					MandelbrotCalculator.DEFAULT_RADIUS_SQUARED,
+					xs,
+					ys,
+					cancelled);
+		}
+	}
+
+	/**
+	 * compute the iteration counts of a view together with the final moduli of their orbits, for SmoothColouring.
+	 * Only double precision views get moduli: deeper views get NaN everywhere, so they are coloured by their whole counts.
+	 * @param counts the row-major array receiving the iteration counts.
+	 * @param moduli the array receiving the square of the final absolute value of Z of every pixel.
+	 * @param xResolution
+	 * @param yResolution
+	 * @param mp the view, iteration count included.
+	 * @param sink notified after each tile is finished, may be null.
+	 * @param cancelled polled to abandon the render, may be null.
+	 */
+	public void calculateSmooth(int[] counts, double[] moduli, int xResolution, int yResolution, MandelbrotParam mp,
+			MandelbrotSink sink, BooleanSupplier cancelled) {
+		if (Precision.select(mp, xResolution, yResolution) != Precision.DOUBLE) {
+			calculate(counts, xResolution, yResolution, mp, 1, sink, cancelled);
+			Arrays.fill(moduli, 0, xResolution * yResolution, Double.NaN);
+			return;
+		}
+		tileEngine.calcMandelbrotSmooth(counts, moduli, xResolution, yResolution,
+				mp.getMinReal(),
+				mp.getMaxReal(),
+				mp.getMinImag(),
+				mp.getMaxImag(),
+				mp.getMaxIteration(),
+				MandelbrotCalculator.DEFAULT_RADIUS_SQUARED,
+				sink,
+				cancelled);
+	}
+
+	/**
+	 * compute the final moduli of the orbits of a view whose iteration counts are known, for SmoothColouring,
+	 * e.g. counts restored from a cache. Only double precision views get them: deeper views get NaN everywhere, so they are coloured by their whole counts.
+	 * @param counts the row-major iteration counts of the view.
+	 * @param moduli the array receiving the square of the final absolute value of Z of every pixel.
+	 * @param xResolution
+	 * @param yResolution
+	 * @param mp the view, iteration count included.
+	 * @param cancelled polled to abandon the pass, may be null.
+	 */
+	public void calculateModuli(int[] counts, double[] moduli, int xResolution, int yResolution, MandelbrotParam mp,
+			BooleanSupplier cancelled) {
+		if (Precision.select(mp, xResolution, yResolution) != Precision.DOUBLE) {
+			Arrays.fill(moduli, 0, xResolution * yResolution, Double.NaN);
+			return;
+		}
+		tileEngine.calcModuli(counts, moduli, xResolution, yResolution,
+				mp.getMinReal(),
+				mp.getMaxReal(),
+				mp.getMinImag(),
+				mp.getMaxImag(),
+				mp.getMaxIteration(),
+				MandelbrotCalculator.DEFAULT_RADIUS_SQUARED,
+				cancelled);
+	}
+
+	/**
+	 * render a view into a new image.
+	 * @param mp
+	 * @param width
+	 * @param height
+	 * @return a TYPE_INT_RGB image of the view.
+	 */
+	public BufferedImage render(MandelbrotParam mp, int width, int height) {
+		int[] iterations = new int[width * height];
+		calculate(iterations, width, height, mp, 1, null, null);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		colour(iterations, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), width, height, mp);
+		return image;
+	}
+
+	/**
+	 * map iteration counts through the palette of a state, with the rows shared out between the fork-join workers.
+	 * @param iterations the row-major iteration counts.
+	 * @param pixels the row-major array receiving the RGB values, e.g. the raster of a TYPE_INT_RGB image.
+	 * @param width
+	 * @param height
+	 * @param mp the state giving the colour scheme and max iteration number.
+	 */
+	public static void colour(final int[] iterations, final int[] pixels, final int width, int height, MandelbrotParam mp) {
+		final int[] palette = Palette.lookup(mp.getColorScheme(), mp.getMaxIteration());
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int i = y * width, end = i + width; i < end; i++) {
+				pixels[i] = palette[iterations[i]];
+			}
+		});
+	}
+}
@@ -0,0 +1,447 @@
+package Model;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The ZoomAnimator class renders a smooth zoom through a list of keyframes, such as the undo history of ModelCalculator.
+ * Between two keyframes the spans are interpolated exponentially, so the zoom runs at a constant rate, and the centre moves
+ * in proportion to how much of the zoom is done, so the point being zoomed into stays put on screen.
+ * The frames are written as numbered PNGs or as a raw RGB stream for ffmpeg, e.g.
+ * 		java Model.ZoomAnimator -size 1280x720 -raw - keyframes.txt | ffmpeg -f rawvideo -pix_fmt rgb24 -s 1280x720 -r 30 -i - zoom.mp4
+ * The next frame is computed while the previous one is encoded on a writer thread.
+ * Adjacent frames share their pixels: a base frame is rendered at reuse times the output resolution over the region swept by
+ * as many following frames as it can hold without any of them being zoomed in by more than that factor relative to it, and those
+ * frames are resampled from it with bilinear filtering. So a zoom in or out, or a pan across the width of a frame, by that factor
+ * costs one render. A frame that cannot share a base with the next one is rendered exactly, as is every frame with a reuse factor of 1.
+ * Keyframes are read in the order given from session files, whose whole history is used, from MSData_*.ser files
+ * or from text specs as for BatchRenderer.
+ * 	example usage:
+ * 		java Model.ZoomAnimator -size 800x800 -frames 60 -out frames MSData_2017-11-24_17:42:37.ser MSData_2017-11-24_19:51:33.ser
+ * @author 170024030
+ *
+ */
+public class ZoomAnimator {
+	private static final String USAGE = "usage: java Model.ZoomAnimator [-size WIDTHxHEIGHT] [-frames N] [-reuse FACTOR] [-threads N]"
+			+ " (-out DIRECTORY | -raw FILE|-) KEYFRAME...";
+	//the number of finished frames waiting for the writer
+	private static final int FRAMES_IN_FLIGHT = 2;
+	private static final int[] END = new int[0];
+	private final int width;
+	private final int height;
+	private final int framesPerKeyframe;
+	private final int reuse;
+	private final ViewRenderer renderer;
+	private int renders;
+
+	/**
+	 * One rendered frame, from which the frames inside it are resampled.
+	 */
+	private static final class Base {
+		final MandelbrotParam view;
+		final int width;
+		final int height;
+		final int[] rgb;
+		final int end;	//the index of the first frame after those resampled from it
+
+		Base(MandelbrotParam view, int width, int height, int[] rgb, int end) {
+			this.view = view;
+			this.width = width;
+			this.height = height;
+			this.rgb = rgb;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Receives the frames in order.
+	 */
+	public interface FrameWriter {
+		/**
+		 * @param index the number of the frame, from 0.
+		 * @param rgb the width * height row-major RGB values of the frame.
+		 */
+		void write(int index, int[] rgb) throws IOException;
+	}
+
+	/**
+	 * Creates an animator.
+	 * @param width
+	 * @param height
+	 * @param framesPerKeyframe the number of frames from one keyframe to the next.
+	 * @param reuse the resolution factor of base frames, 1 to render every frame.
+	 * @param renderer
+	 */
+	public ZoomAnimator(int width, int height, int framesPerKeyframe, int reuse, ViewRenderer renderer) {
+		if (width <= 0 || height <= 0 || framesPerKeyframe <= 0 || reuse <= 0) {
+			throw new IllegalArgumentException("sizes and counts must be positive");
+		}
+		this.width = width;
+		this.height = height;
+		this.framesPerKeyframe = framesPerKeyframe;
+		this.reuse = reuse;
+		this.renderer = renderer;
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int width = 800;
+		int height = 800;
+		int frames = 30;
+		int reuse = 2;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String out = null;
+		String raw = null;
+		List<MandelbrotParam> keyframes = new ArrayList<MandelbrotParam>();
+		List<File> inputs = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (!arg.startsWith("-") || arg.equals("-")) {
+					inputs.add(new File(arg));
+					continue;
+				}
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("missing value for " + arg);
+				}
+				String value = args[++i];
+				switch (arg) {
+				case "-size":
+					String[] size = value.toLowerCase().split("x");
+					if (size.length != 2) {
+						throw new IllegalArgumentException("size must be WIDTHxHEIGHT: " + value);
+					}
+					width = BatchRenderer.positive(arg, size[0]);
+					height = BatchRenderer.positive(arg, size[1]);
+					break;
+				case "-frames":
+					frames = BatchRenderer.positive(arg, value);
+					break;
+				case "-reuse":
+					reuse = BatchRenderer.positive(arg, value);
+					break;
+				case "-threads":
+					threads = BatchRenderer.positive(arg, value);
+					break;
+				case "-out":
+					out = value;
+					break;
+				case "-raw":
+					raw = value;
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option " + arg);
+				}
+			}
+			if ((out == null) == (raw == null)) {
+				throw new IllegalArgumentException("expected one of -out and -raw");
+			}
+			for (File input : inputs) {
+				readKeyframes(input, width, height, keyframes);
+			}
+			if (keyframes.size() < 2) {
+				throw new IllegalArgumentException("expected at least two keyframes");
+			}
+		} catch (IllegalArgumentException | IOException | ClassNotFoundException | ClassCastException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		ZoomAnimator animator = new ZoomAnimator(width, height, frames, reuse,
+				new ViewRenderer(new MandelbrotCalculator(MandelbrotCalculator.DEFAULT_TILE_SIZE, threads)));
+		try {
+			if (raw != null) {
+				try (OutputStream stream = raw.equals("-") ? System.out : new FileOutputStream(raw)) {
+					animator.render(keyframes, rawWriter(new BufferedOutputStream(stream, 1 << 20), width * height));
+				}
+			} else {
+				File directory = new File(out);
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					throw new IOException("cannot create " + directory);
+				}
+				animator.render(keyframes, pngWriter(directory, width, height));
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private static void readKeyframes(File input, int width, int height, List<MandelbrotParam> keyframes)
+			throws IOException, ClassNotFoundException {
+		if (SessionFile.matches(input)) {
+			keyframes.addAll(SessionFile.read(input.toPath()).getHistory());
+			return;
+		}
+		if (input.getName().endsWith(".ser")) {
+			keyframes.add(BatchRenderer.readParam(input));
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					keyframes.add(BatchRenderer.parseSpec(line, width, height));
+				}
+			}
+		}
+	}
+
+	/**
+	 * writes every frame to a numbered PNG file, frame_00000.png onwards.
+	 */
+	public static FrameWriter pngWriter(final File directory, final int width, final int height) {
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		return new FrameWriter() {
+			public void write(int index, int[] rgb) throws IOException {
+				System.arraycopy(rgb, 0, pixels, 0, pixels.length);
+				ImageIO.write(image, "PNG", new File(directory, String.format("frame_%05d.png", index)));
+			}
+		};
+	}
+
+	/**
+	 * writes every frame to a stream as packed 8-bit RGB, the rawvideo rgb24 format of ffmpeg.
+	 */
+	public static FrameWriter rawWriter(final OutputStream stream, int pixelCount) {
+		final byte[] bytes = new byte[pixelCount * 3];
+		return new FrameWriter() {
+			public void write(int index, int[] rgb) throws IOException {
+				for (int i = 0, j = 0; i < rgb.length; i++) {
+					int c = rgb[i];
+					bytes[j++] = (byte) (c >> 16);
+					bytes[j++] = (byte) (c >> 8);
+					bytes[j++] = (byte) c;
+				}
+				stream.write(bytes);
+				stream.flush();
+			}
+		};
+	}
+
+	/**
+	 * render the zoom through the keyframes, framesPerKeyframe frames from each keyframe to the next plus the last keyframe,
+	 * and report the throughput on the standard error.
+	 * @param keyframes at least two states.
+	 * @param writer receives the frames, on a thread of its own.
+	 * @throws IOException if the writer failed.
+	 */
+	public void render(List<MandelbrotParam> keyframes, final FrameWriter writer) throws IOException {
+		final List<MandelbrotParam> frames = new ArrayList<MandelbrotParam>();
+		for (int k = 0; k + 1 < keyframes.size(); k++) {
+			MandelbrotParam from = BatchRenderer.fit(keyframes.get(k), width, height, null, 0);
+			MandelbrotParam to = BatchRenderer.fit(keyframes.get(k + 1), width, height, null, 0);
+			for (int f = 0; f < framesPerKeyframe; f++) {
+				frames.add(interpolate(from, to, (double) f / framesPerKeyframe));
+			}
+		}
+		frames.add(BatchRenderer.fit(keyframes.get(keyframes.size() - 1), width, height, null, 0));
+
+		final BlockingQueue<int[]> queue = new ArrayBlockingQueue<int[]>(FRAMES_IN_FLIGHT);
+		//the exception the writer failed with, which stops the renders; a RuntimeException, e.g. from ImageIO, counts as well
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread writerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int index = 0; ; index++) {
+						int[] rgb = queue.take();
+						if (rgb == END) {
+							return;
+						}
+						writer.write(index, rgb);
+					}
+				} catch (IOException | RuntimeException e) {
+					failure.set(e);
+					queue.clear();	//unblocks the render loop, which stops at its next frame
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "frame-writer");
+		writerThread.start();
+
+		long start = System.nanoTime();
+		renders = 0;
+		Base base = null;
+		try {
+			for (int index = 0; index < frames.size() && failure.get() == null; index++) {
+				MandelbrotParam frame = frames.get(index);
+				int[] rgb = new int[width * height];
+				if (base == null || index >= base.end) {
+					base = reuse == 1 ? null : renderBase(frames, index);
+				}
+				if (base == null) {
+					renderExact(frame, rgb);
+				} else {
+					resample(base, frame, rgb);
+				}
+				if (failure.get() != null) {
+					break;	//the writer is gone, nothing would take the frame
+				}
+				queue.put(rgb);
+				if ((index + 1) % 10 == 0) {
+					System.err.printf("frame %d/%d, %.1f fps%n", index + 1, frames.size(), (index + 1) / ((System.nanoTime() - start) / 1e9));
+				}
+			}
+			queue.put(END);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			writerThread.interrupt();
+			throw new IOException("interrupted", e);
+		}
+		Exception e = failure.get();
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e != null) {
+			throw (RuntimeException) e;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.printf("%d frames of %dx%d in %.1f s, %.2f fps, %d renders%n", frames.size(), width, height, seconds,
+				frames.size() / seconds, renders);
+	}
+
+	/**
+	 * the state at fraction t of the way from one keyframe to the next.
+	 */
+	static MandelbrotParam interpolate(MandelbrotParam from, MandelbrotParam to, double t) {
+		double realSpan = from.getRealSpan() * Math.pow(to.getRealSpan() / from.getRealSpan(), t);
+		double imagSpan = from.getImagSpan() * Math.pow(to.getImagSpan() / from.getImagSpan(), t);
+		double fromSpan = Math.abs(from.getRealSpan());
+		double toSpan = Math.abs(to.getRealSpan());
+		//the share of the zoom done, which moves the centre so that the target point stays still on screen
+		double done = fromSpan == toSpan ? t : (fromSpan - Math.abs(realSpan)) / (fromSpan - toSpan);
+		MathContext mc = MandelbrotParam.precisionFor(Math.min(Math.abs(realSpan), Math.abs(imagSpan)));
+		BigDecimal share = new BigDecimal(done);
+		BigDecimal centreReal = from.getCentreReal().add(to.getCentreReal().subtract(from.getCentreReal(), mc).multiply(share, mc), mc);
+		BigDecimal centreImag = from.getCentreImag().add(to.getCentreImag().subtract(from.getCentreImag(), mc).multiply(share, mc), mc);
+		int maxIteration = (int) Math.round(from.getMaxIteration() + (to.getMaxIteration() - from.getMaxIteration()) * t);
+		return new MandelbrotParam(centreReal, centreImag, realSpan, imagSpan, from.getColorScheme(), maxIteration);
+	}
+
+	private void renderExact(MandelbrotParam frame, int[] rgb) {
+		int[] iterations = new int[width * height];
+		renderer.calculate(iterations, width, height, frame, 1, null, null);
+		ViewRenderer.colour(iterations, rgb, width, height, frame);
+		renders++;
+	}
+
+	/**
+	 * render the base frame of the frames from the given index: the smallest region of their shape that holds as many of them
+	 * in a row as possible while none of them is zoomed in by reuse or more relative to it.
+	 * @return the base, or null if it would only hold the first frame, which is then better rendered exactly.
+	 */
+	private Base renderBase(List<MandelbrotParam> frames, int index) {
+		MandelbrotParam first = frames.get(index);
+		double aspect = Math.abs(first.getRealSpan() / first.getImagSpan());
+		//the bounds of the region swept so far, relative to the centre of the first frame
+		double left = -Math.abs(first.getRealSpan()) / 2;
+		double right = -left;
+		double top = -Math.abs(first.getImagSpan()) / 2;
+		double bottom = -top;
+		double smallestReal = Math.abs(first.getRealSpan());
+		double smallestImag = Math.abs(first.getImagSpan());
+		double realSpan = right - left;
+		int end = index + 1;
+		for (; end < frames.size(); end++) {
+			MandelbrotParam frame = frames.get(end);
+			double dx = frame.getCentreReal().subtract(first.getCentreReal()).doubleValue();
+			double dy = frame.getCentreImag().subtract(first.getCentreImag()).doubleValue();
+			double frameReal = Math.abs(frame.getRealSpan());
+			double frameImag = Math.abs(frame.getImagSpan());
+			double l = Math.min(left, dx - frameReal / 2);
+			double r = Math.max(right, dx + frameReal / 2);
+			double t = Math.min(top, dy - frameImag / 2);
+			double b = Math.max(bottom, dy + frameImag / 2);
+			double span = Math.max(r - l, (b - t) * aspect);
+			double sr = Math.min(smallestReal, frameReal);
+			double si = Math.min(smallestImag, frameImag);
+			if (span > reuse * sr || span / aspect > reuse * si) {
+				break;
+			}
+			left = l;
+			right = r;
+			top = t;
+			bottom = b;
+			smallestReal = sr;
+			smallestImag = si;
+			realSpan = span;
+		}
+		if (end == index + 1) {
+			return null;
+		}
+		MathContext mc = MandelbrotParam.precisionFor(Math.min(realSpan, realSpan / aspect));
+		MandelbrotParam view = new MandelbrotParam(
+				first.getCentreReal().add(new BigDecimal((left + right) / 2), mc),
+				first.getCentreImag().add(new BigDecimal((top + bottom) / 2), mc),
+				Math.copySign(realSpan, first.getRealSpan()),
+				Math.copySign(realSpan / aspect, first.getImagSpan()),
+				first.getColorScheme(), first.getMaxIteration());
+		int w = width * reuse;
+		int h = height * reuse;
+		int[] iterations = new int[w * h];
+		renderer.calculate(iterations, w, h, view, 1, null, null);
+		ViewRenderer.colour(iterations, iterations, w, h, view);
+		renders++;
+		return new Base(view, w, h, iterations, end);
+	}
+
+	/**
+	 * fill a frame from a base frame, interpolating the colours of the four base pixels around every frame pixel.
+	 */
+	private void resample(final Base base, MandelbrotParam frame, final int[] rgb) {
+		double baseRealStep = base.view.getRealSpan() / base.width;
+		double baseImagStep = base.view.getImagSpan() / base.height;
+		//the position of the first frame pixel and the distance between frame pixels, in base pixels
+		final double x0 = (frame.getCentreReal().subtract(base.view.getCentreReal()).doubleValue()
+				+ (base.view.getRealSpan() - frame.getRealSpan()) / 2) / baseRealStep;
+		final double y0 = (frame.getCentreImag().subtract(base.view.getCentreImag()).doubleValue()
+				+ (base.view.getImagSpan() - frame.getImagSpan()) / 2) / baseImagStep;
+		final double dx = frame.getRealSpan() / width / baseRealStep;
+		final double dy = frame.getImagSpan() / height / baseImagStep;
+		IntStream.range(0, height).parallel().forEach(y -> {
+			double by = Math.max(0, Math.min(base.height - 1, y0 + y * dy));
+			int row = Math.min((int) by, base.height - 2);
+			double fy = by - row;
+			for (int x = 0; x < width; x++) {
+				double bx = Math.max(0, Math.min(base.width - 1, x0 + x * dx));
+				int column = Math.min((int) bx, base.width - 2);
+				double fx = bx - column;
+				int i = row * base.width + column;
+				rgb[y * width + x] = blend(base.rgb[i], base.rgb[i + 1], base.rgb[i + base.width], base.rgb[i + base.width + 1], fx, fy);
+			}
+		});
+	}
+
+	private static int blend(int topLeft, int topRight, int bottomLeft, int bottomRight, double fx, double fy) {
+		int rgb = 0;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			double top = ((topLeft >> shift) & 0xff) * (1 - fx) + ((topRight >> shift) & 0xff) * fx;
+			double bottom = ((bottomLeft >> shift) & 0xff) * (1 - fx) + ((bottomRight >> shift) & 0xff) * fx;
+			rgb |= ((int) (top * (1 - fy) + bottom * fy + 0.5)) << shift;
+		}
+		return rgb;
+	}
+}
@@ -1,10 +1,14 @@
 package UIDelegate;
 
+import java.awt.AlphaComposite;
 import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
@@ -18,7 +22,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import Model.MandelbrotParam;
 import Model.ModelCalculator;
+import Model.RenderListener;
+import Model.RenderMetrics;
 /**
  * The MandelbrotSetExplorer class contains method to establish the GUI and interact with users.
  * 	example usage:
@@ -29,12 +36,13 @@ import Model.ModelCalculator;
 public class MandelbrotSetExplorer extends JComponent{
 	
 	private static final long serialVersionUID = 1L;
-	public static final int WIDTH = 800;
-	public static final int HEIGHT = 800;
-	public static final int MENU_WIDTH = 90;
+	//the size of the canvas when the window opens, in logical pixels; the image follows the canvas afterwards
+	public static final int DEFAULT_WIDTH = 800;
+	public static final int DEFAULT_HEIGHT = 800;
 	public static final int WHEEL_ZOOM_IN_RATIO = 100;
+	//the time without input after which an interaction is over and the full resolution image is rendered, in milliseconds
+	public static final int SETTLE_DELAY = 150;
 	private ArrayList<int[]> pointList = new ArrayList<int[]>();
-	private int[] mouseLocation = new int[2];
 	private BufferedImage image;
 	private boolean released = false;
 	private int startCoor[] = new int[2];
@@ -44,17 +52,34 @@ public class MandelbrotSetExplorer extends JComponent{
 	private JToolBar toolbar;
 	private boolean flagUndo = false;
 	private JTextField textfield;
+	private boolean showStatistics = false;	//whether the render metrics are drawn over the image
+	private boolean interacting = false;	//whether previews are drawn instead of the full resolution image
+	private MandelbrotParam previewState;	//the state the previews show while interacting
+	private boolean panning = false;	//whether the view is being dragged with the right button
+	//ends an interaction once the input has settled
+	private final Timer settleTimer = new Timer(SETTLE_DELAY, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+			settle();
+		}
+	});
 	
 	
 	ModelCalculator modelCalculator;
+	//repaints the canvas whenever the background render publishes new pixels
+	private final RenderListener renderListener = new RenderListener() {
+		public void imageUpdated(boolean complete) {
+			repaint();
+		}
+	};
 	
 	/**
 	 * Constructor. set size of the image, setup all components.
 	 */
 	public MandelbrotSetExplorer() {
-		image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		image = new BufferedImage(DEFAULT_WIDTH, DEFAULT_HEIGHT, BufferedImage.TYPE_INT_RGB);
 		frame = new JFrame("Mandelbrot Set Explorer");
-		this.modelCalculator = new ModelCalculator(WIDTH, HEIGHT);
+		this.modelCalculator = new ModelCalculator(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+		settleTimer.setRepeats(false);
 		setup();
 	}
 	
@@ -65,34 +90,133 @@ public class MandelbrotSetExplorer extends JComponent{
 	 * Set the size of the frame.
 	 */
 	public void addNotify() {
-		setPreferredSize(new Dimension(WIDTH, HEIGHT));
+		super.addNotify();
+		setPreferredSize(new Dimension(DEFAULT_WIDTH, DEFAULT_HEIGHT));
 	}
 
 	@Override
 	/**
 	 * Override paint method.
-	 * Paint the image generated from the Model part.
-	 * Paint the square used to indicate the part to zoom in.
+	 * Paint the image generated from the Model part, scaled to the canvas. The image has a pixel per pixel of the screen, so it
+	 * follows the size of the canvas and the scale of HiDPI screens; a change of either starts an interaction.
+	 * While the user interacts, the model renders reduced resolution previews and the last one is drawn scaled up.
+	 * Otherwise, if the state changed, the model renders the new image in the background and this method returns straight away
+	 * with whatever has been rendered so far; the render listener repaints as pixels arrive. Otherwise the cached image is drawn as it is.
+	 * Paint the square used to indicate the part to zoom in as an overlay on top of the image,
+	 * and the render metrics if they are shown.
 	 * @param g
 	 */
 	public void paint(Graphics g) {
-		modelCalculator.updateImage();
-		image = modelCalculator.getImage();
+		long start = System.nanoTime();
+		int imageWidth = imageWidth();
+		int imageHeight = imageHeight();
+		if (imageWidth != modelCalculator.getWidth() || imageHeight != modelCalculator.getHeight()
+				|| pixelScale() != modelCalculator.getPixelScale()) {
+			previewState = modelCalculator.getResizedState(imageWidth, imageHeight, pixelScale());
+			interact();
+		}
 		Graphics2D g2d = (Graphics2D) g;
-		g2d.drawImage(image, 0, 0, null);
+		BufferedImage preview = null;
+		if (interacting && previewState != null) {
+			modelCalculator.requestPreview(previewState, imageWidth, imageHeight, renderListener);
+			preview = modelCalculator.getPreviewImage();
+		} else {
+			modelCalculator.requestImage(renderListener);
+		}
+		if (preview != null) {
+			Object interpolation = g2d.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.drawImage(preview, 0, 0, getWidth(), getHeight(), null);
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					interpolation != null ? interpolation : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		} else {
+			image = modelCalculator.getImage();
+			g2d.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+		}
+		RenderMetrics.global().paintTook(System.nanoTime() - start);
+		if (showStatistics) {
+			paintStatistics(g2d);
+		}
 		//painting the box generated by the location where mouse clicked (x1, y1) and dragged to (x2, y2).
 		if (!released) {
 			if (!pointList.isEmpty()) {
 				int x1 = pointList.get(0)[0];
-				int y1 = pointList.get(0)[1] - MENU_WIDTH;
+				int y1 = pointList.get(0)[1];
 				int x2 = pointList.get(pointList.size() - 1)[0];
-				int y2 = pointList.get(pointList.size() - 1)[1] - MENU_WIDTH;
+				int y2 = pointList.get(pointList.size() - 1)[1];
 				Square s = new Square(x1, x2, y1, y2);
 				g2d.drawRect((int) s.getxMin(), (int) s.getyMin(), (int) s.getSide(), (int) s.getSide());
 			}
 		}
 	}
 
+	/**
+	 * Paint the render metrics in the top left corner, on a translucent background so that the image stays visible.
+	 * @param g2d
+	 */
+	private void paintStatistics(Graphics2D g2d) {
+		java.util.List<String> lines = RenderMetrics.global().summary();
+		int lineHeight = g2d.getFontMetrics().getHeight();
+		int width = 0;
+		for (String line : lines) {
+			width = Math.max(width, g2d.getFontMetrics().stringWidth(line));
+		}
+		Color color = g2d.getColor();
+		Composite composite = g2d.getComposite();
+		g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.6f));
+		g2d.setColor(Color.BLACK);
+		g2d.fillRect(0, 0, width + 10, lines.size() * lineHeight + 6);
+		g2d.setComposite(composite);
+		g2d.setColor(Color.WHITE);
+		for (int i = 0; i < lines.size(); i++) {
+			g2d.drawString(lines.get(i), 5, 3 + i * lineHeight + g2d.getFontMetrics().getAscent());
+		}
+		g2d.setColor(color);
+	}
+
+	/**
+	 * @return the pixels of the screen per logical pixel of the canvas, 1 unless the screen is HiDPI.
+	 */
+	private double pixelScale() {
+		return getGraphicsConfiguration() == null ? 1 : getGraphicsConfiguration().getDefaultTransform().getScaleX();
+	}
+
+	/**
+	 * @return the width the image should have to give every pixel of the canvas on the screen its own.
+	 */
+	private int imageWidth() {
+		return Math.max(1, (int) Math.round(getWidth() * pixelScale()));
+	}
+
+	/**
+	 * @return the height the image should have to give every pixel of the canvas on the screen its own.
+	 */
+	private int imageHeight() {
+		return Math.max(1, (int) Math.round(getHeight() * pixelScale()));
+	}
+
+	/**
+	 * Start or continue an interaction: previews are drawn until the input has settled for SETTLE_DELAY milliseconds.
+	 */
+	private void interact() {
+		interacting = true;
+		settleTimer.restart();
+	}
+
+	/**
+	 * End the interaction once the input has settled, unless a pan is still being dragged:
+	 * the image takes the size of the canvas and is rendered at full resolution, starting from the last preview.
+	 */
+	private void settle() {
+		if (panning) {
+			return;
+		}
+		interacting = false;
+		previewState = null;
+		modelCalculator.setSize(imageWidth(), imageHeight(), pixelScale());
+		repaint();
+	}
+
 	/**
 	 * Setup all components of the main frame including
 	 * 			the menu set,
@@ -117,7 +241,8 @@ public class MandelbrotSetExplorer extends JComponent{
 	 * Setup the menu set with the file pull-down menu which includes
 	 * 			load data,
 	 * 			save data,
-	 * 			and save image.
+	 * 			and save image,
+	 * and the view pull-down menu which shows the render statistics.
 	 */
 	private void setupMenu() {
         JMenu file = new JMenu("File");
@@ -127,7 +252,7 @@ public class MandelbrotSetExplorer extends JComponent{
             	//A file chooser is implemented to choose the data to load from existing file.
             	JFileChooser chooser = new JFileChooser();
                 FileNameExtensionFilter filter = new FileNameExtensionFilter(
-                        "SER files", "ser");
+                        "Session files", "mss", "ser");
                 chooser.setFileFilter(filter);
                 int returnVal = chooser.showOpenDialog(null);
                 if(returnVal == JFileChooser.APPROVE_OPTION) {
@@ -158,6 +283,28 @@ public class MandelbrotSetExplorer extends JComponent{
             }
         });
         
+        JMenuItem saveWithIterations = new JMenuItem("Save Data with Iterations");
+        saveWithIterations.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+            	//also store the iteration counts, so that reopening the view does not compute it again.
+            	//they may have to be computed, so the save runs off the event dispatch thread.
+            	new SwingWorker<Void, Void>() {
+            		protected Void doInBackground() throws IOException {
+            			modelCalculator.saveParam(true);
+            			return null;
+            		}
+
+            		protected void done() {
+            			try {
+            				get();
+            			} catch (Exception e2) {
+            				JOptionPane.showMessageDialog(frame, "Ooops, IOException reported!");
+            			}
+            		}
+            	}.execute();
+            }
+        });
+        
         JMenuItem saveImage = new JMenuItem("Save Image");
         saveImage.addActionListener(new ActionListener() {
         	public void actionPerformed(ActionEvent e){
@@ -173,8 +320,30 @@ public class MandelbrotSetExplorer extends JComponent{
         //add menu set to frame
         file.add(load);
         file.add(save);
+        file.add(saveWithIterations);
         file.add(saveImage);
         menu.add(file);
+        
+        JMenu view = new JMenu("View");
+        final JCheckBoxMenuItem statistics = new JCheckBoxMenuItem("Show Statistics");
+        statistics.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+            	//draw the render metrics over the image while exploring.
+            	showStatistics = statistics.isSelected();
+            	frame.repaint();
+            }
+        });
+        view.add(statistics);
+        final JCheckBoxMenuItem smooth = new JCheckBoxMenuItem("Smooth Colouring");
+        smooth.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+            	//colour by histogram equalisation of the continuous iteration count instead of the linear palettes.
+            	modelCalculator.setSmoothColouring(smooth.isSelected());
+            	frame.repaint();
+            }
+        });
+        view.add(smooth);
+        menu.add(view);
         frame.setJMenuBar(menu);
     }
 	
@@ -194,7 +363,11 @@ public class MandelbrotSetExplorer extends JComponent{
         	 * construct a new model calculator to reset the view and settings.
         	 */
             public void actionPerformed(ActionEvent e) {
-                modelCalculator = new ModelCalculator(WIDTH, HEIGHT);
+                modelCalculator.cancelRender();
+                boolean smooth = modelCalculator.isSmoothColouring();
+                modelCalculator = new ModelCalculator(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+                modelCalculator.setSize(imageWidth(), imageHeight(), pixelScale());
+                modelCalculator.setSmoothColouring(smooth);
                 textfield.setText("" + modelCalculator.getData().get(modelCalculator.getStateIndex()).getMaxIteration());
                 frame.repaint();
             }
@@ -248,14 +421,7 @@ public class MandelbrotSetExplorer extends JComponent{
         	 * Allow the user to apply change with hitting the enter key.
         	 */
         	public void actionPerformed(ActionEvent e) {
-        		String text = textfield.getText();
-                int maxIter = Integer.parseInt(text);
-                if (flagUndo) {
-					modelCalculator.removeTail();
-					flagUndo = false;
-				}
-            	modelCalculator.setNextState(maxIter);
-            	frame.repaint();
+        		applyMaxIteration();
             }
         });
         
@@ -265,14 +431,7 @@ public class MandelbrotSetExplorer extends JComponent{
         	 * Add a new state with given maxIter and former settings.
         	 */
             public void actionPerformed(ActionEvent e) {
-            	String text = textfield.getText();
-                int maxIter = Integer.parseInt(text);
-                if (flagUndo) {
-					modelCalculator.removeTail();
-					flagUndo = false;
-				}
-            	modelCalculator.setNextState(maxIter);
-            	frame.repaint();
+            	applyMaxIteration();
             }
         });
         /**
@@ -289,8 +448,32 @@ public class MandelbrotSetExplorer extends JComponent{
     }
 	
 	
+	/**
+	 * Add a new state with the max iteration number typed in the text field, from 1 to ModelCalculator.MAX_ITERATIONS.
+	 * Any other input is reported and the text field shows the current number again.
+	 */
+	private void applyMaxIteration() {
+		int maxIter;
+		try {
+			maxIter = Integer.parseInt(textfield.getText().trim());
+		} catch (NumberFormatException e) {
+			maxIter = 0;
+		}
+		if (maxIter < 1 || maxIter > ModelCalculator.MAX_ITERATIONS) {
+			JOptionPane.showMessageDialog(frame, "Ooops, the iteration number must be from 1 to " + ModelCalculator.MAX_ITERATIONS + "!");
+			textfield.setText("" + modelCalculator.getData().get(modelCalculator.getStateIndex()).getMaxIteration());
+			return;
+		}
+		if (flagUndo) {
+			modelCalculator.removeTail();
+			flagUndo = false;
+		}
+		modelCalculator.setNextState(maxIter);
+		frame.repaint();
+	}
+
 	private void addMouseListeners() {
-		frame.addMouseListener(new MouseListener () {
+		addMouseListener(new MouseListener () {
 			@Override
 			public void mouseClicked(MouseEvent e) {
 				// TODO Auto-generated method stub
@@ -299,10 +482,15 @@ public class MandelbrotSetExplorer extends JComponent{
 			@Override
 			/**
 			 * give the coordinates of the first point when clicked.
+			 * the right button drags the view instead of drawing a square.
 			 */
 			public void mousePressed(MouseEvent e) {
-				released = false;
 				startCoor = new int[]{e.getX(),e.getY()};
+				if (SwingUtilities.isRightMouseButton(e)) {
+					panning = true;
+					return;
+				}
+				released = false;
 			}
 	
 			@Override
@@ -311,10 +499,16 @@ public class MandelbrotSetExplorer extends JComponent{
 			 */
 			public void mouseReleased(MouseEvent e) {
 				endCoor = new int[]{e.getX(),e.getY()};
+				if (SwingUtilities.isRightMouseButton(e)) {
+					//the image follows the mouse, so the view moves the other way
+					panning = false;
+					pan(startCoor[0] - endCoor[0], startCoor[1] - endCoor[1]);
+					return;
+				}
 				double y1 = startCoor[0];
-				double x1 = startCoor[1] - MENU_WIDTH;
+				double x1 = startCoor[1];
 				double y2 = endCoor[0];
-				double x2 = endCoor[1] - MENU_WIDTH;
+				double x2 = endCoor[1];
 				zoom(x1, x2, y1, y2);
 			}
 
@@ -329,35 +523,39 @@ public class MandelbrotSetExplorer extends JComponent{
 			}
 		});
 		
-		frame.addMouseMotionListener(new MouseMotionListener(){
-			//save points to draw the square on the image.
+		addMouseMotionListener(new MouseMotionListener(){
+			//save points to draw the square on the image, or preview the view being dragged.
 			public void mouseDragged(MouseEvent e) {
+				if (SwingUtilities.isRightMouseButton(e)) {
+					previewState = modelCalculator.getPannedState(toImageX(startCoor[0] - e.getX()), toImageY(startCoor[1] - e.getY()));
+					interact();
+					repaint();
+					return;
+				}
 				pointList.add(new int[]{e.getX(),e.getY()});
 				frame.repaint();
 			}
 			public void mouseMoved(MouseEvent e) {
-				mouseLocation = new int[]{e.getX(), e.getY()};
 			}
 		});
 		
-		frame.addMouseWheelListener(new MouseWheelListener() {
-			//zoom in with wheels
+		addMouseWheelListener(new MouseWheelListener() {
+			//zoom in with wheels, about the point under the mouse, showing previews until the wheel stops.
 			@Override
 			public void mouseWheelMoved(MouseWheelEvent e) {
 				int notches = e.getWheelRotation();
-				if (notches < 0) {
-					double x1 = 0 + (mouseLocation[1] - 0) / WHEEL_ZOOM_IN_RATIO;
-					double y1 = 0 + (mouseLocation[0] - 0) / WHEEL_ZOOM_IN_RATIO;
-					double x2 = WIDTH - (WIDTH - mouseLocation[1]) / WHEEL_ZOOM_IN_RATIO;
-					double y2 = HEIGHT - (HEIGHT - mouseLocation[0]) / WHEEL_ZOOM_IN_RATIO;
-		    		zoom(x1, x2, y1, y2);
-				    } else {
-				    	double x1 = 0 - (mouseLocation[1] - 0) / WHEEL_ZOOM_IN_RATIO;
-						double y1 = 0 - (mouseLocation[0] - 0) / WHEEL_ZOOM_IN_RATIO;
-						double x2 = WIDTH + (WIDTH - mouseLocation[1]) / WHEEL_ZOOM_IN_RATIO;
-						double y2 = HEIGHT + (HEIGHT - mouseLocation[0]) / WHEEL_ZOOM_IN_RATIO;
-			    		zoom(x1, x2, y1, y2);
-				    }
+				if (notches == 0) {
+					return;
+				}
+				if (flagUndo) {
+					modelCalculator.removeTail();
+					flagUndo = false;
+				}
+				double factor = notches < 0 ? 1 - 1.0 / WHEEL_ZOOM_IN_RATIO : 1 + 1.0 / WHEEL_ZOOM_IN_RATIO;
+				modelCalculator.setNextState(toImageX(e.getX()), toImageY(e.getY()), factor);
+				previewState = modelCalculator.getView();
+				interact();
+				repaint();
 			}
 		});
 
@@ -371,7 +569,10 @@ public class MandelbrotSetExplorer extends JComponent{
 	 * @param y2
 	 */
 	private void zoom(double x1, double x2, double y1, double y2) {
-		Square s = new Square(x1, x2, y1, y2);
+		//from pixels of the canvas to pixels of the image
+		double rowScale = (double) modelCalculator.getHeight() / Math.max(getHeight(), 1);
+		double columnScale = (double) modelCalculator.getWidth() / Math.max(getWidth(), 1);
+		Square s = new Square(x1 * rowScale, x2 * rowScale, y1 * columnScale, y2 * columnScale);
 		if (flagUndo) {
 			modelCalculator.removeTail();
 			flagUndo = false;
@@ -379,17 +580,42 @@ public class MandelbrotSetExplorer extends JComponent{
 		//generate a new state of Mandelbrot set with the square to zoom in.
 		if (x1 != x2 || y1 != y2) {
 			modelCalculator.setNextState(s);
-			
 			frame.repaint();
-			try {
-				Thread.sleep(40);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
 			pointList = new ArrayList<int[]>();
 		}
 		released = true;
 	}
 
+	/**
+	 * @return the number of columns of the image covering the given number of columns of the canvas.
+	 */
+	private int toImageX(int x) {
+		return (int) Math.round((double) x * modelCalculator.getWidth() / Math.max(getWidth(), 1));
+	}
+
+	/**
+	 * @return the number of rows of the image covering the given number of rows of the canvas.
+	 */
+	private int toImageY(int y) {
+		return (int) Math.round((double) y * modelCalculator.getHeight() / Math.max(getHeight(), 1));
+	}
+
+	/**
+	 * The method implemented to pan the view by the given number of pixels.
+	 * @param dx
+	 * @param dy
+	 */
+	private void pan(int dx, int dy) {
+		if (flagUndo) {
+			modelCalculator.removeTail();
+			flagUndo = false;
+		}
+		if (dx != 0 || dy != 0) {
+			modelCalculator.setNextState(toImageX(dx), toImageY(dy));
+		}
+		//the pan only computes the strips that came into view, so the full resolution image follows at once
+		settleTimer.stop();
+		settle();
+	}
+
 }
\ No newline at end of file